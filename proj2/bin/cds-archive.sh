@@ -0,0 +1,68 @@
+#!/usr/bin/env bash
+#
+# Usage: cds-archive.sh JAR ARCHIVE
+#
+# Builds an AppCDS archive of the classes gitlet loads, so that bin/gitlet starts
+# without loading and verifying them from JAR again. The classes are those loaded
+# while running a sample of commands in a scratch repository, each in its own JVM,
+# since one JVM runs one command.
+#
+# The archive only fits the JAR it was built from, at the same absolute path; the
+# JVM ignores it otherwise. Rebuild it whenever the jar is rebuilt.
+
+set -euo pipefail
+
+if [ $# -ne 2 ]; then
+    echo "Usage: $0 JAR ARCHIVE" >&2
+    exit 2
+fi
+
+JAR="$(cd "$(dirname "$1")" && pwd)/$(basename "$1")"
+ARCHIVE="$2"
+JAVA="${JAVA:-java}"
+WORK="$(mktemp -d)"
+trap 'rm -rf "$WORK"' EXIT
+
+mkdir "$WORK/repo" "$WORK/lists"
+cd "$WORK/repo"
+
+run=0
+train() {
+    run=$((run + 1))
+    "$JAVA" -XX:DumpLoadedClassList="$WORK/lists/$run.lst" -cp "$JAR" gitlet.Client "$@" >/dev/null
+}
+
+train init
+echo one > a.txt
+echo two > b.txt
+train add a.txt
+train add b.txt
+train commit "first"
+train status
+train branch other
+train checkout other
+echo three > a.txt
+train add a.txt
+train rm b.txt
+train commit "second"
+train checkout master
+echo four > c.txt
+train add c.txt
+train commit "third"
+train merge other
+train log
+train global-log
+train find "first"
+train find --contains "sec"
+train checkout -- a.txt
+train reset "$("$JAVA" -cp "$JAR" gitlet.Main find "first")"
+train rm-branch other
+train gc
+train status
+
+# Keep the first occurrence of each line: a lambda proxy must follow the classes it names.
+cat $(ls "$WORK"/lists/*.lst | sort -V) | awk '!seen[$0]++' > "$WORK/classes.lst"
+"$JAVA" -Xshare:dump -XX:SharedClassListFile="$WORK/classes.lst" \
+    -XX:SharedArchiveFile="$ARCHIVE" -cp "$JAR" > "$WORK/dump.log" 2>&1 \
+    || { cat "$WORK/dump.log" >&2; exit 1; }
+echo "Wrote $ARCHIVE"
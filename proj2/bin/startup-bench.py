@@ -0,0 +1,121 @@
+#!/usr/bin/env python3
+"""Measures how long gitlet commands take to start.
+
+Usage: startup-bench.py [--jar JAR] [--runs N] [--commits N] [COMMAND ...]
+
+Each COMMAND is a quoted gitlet command line, run in a scratch repository with
+--commits commits of history; by default status, log -n 1, global-log -n 1
+and find. Every command is run in three ways:
+
+    plain   java -cp JAR gitlet.Main, without gitlet's class-data archive
+    cds     bin/gitlet, with the archive next to JAR when there is one
+    server  bin/gitlet while `gitlet server` runs in the repository
+
+The first run of a command in a given way is reported as cold, and the median of
+the next N runs as warm. For both, the time to the first byte of standard output
+and the total wall time are printed in milliseconds, one tab-separated line per
+command and way, so that results can be kept and compared across changes.
+"""
+
+import argparse
+import os
+import shlex
+import shutil
+import statistics
+import subprocess
+import sys
+import tempfile
+import time
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+PROJECT = os.path.dirname(HERE)
+LAUNCHER = os.path.join(HERE, "gitlet")
+
+DEFAULT_COMMANDS = ["status", "log -n 1", "global-log -n 1", "find initial"]
+
+
+def timed(argv, cwd, env):
+    """Runs ARGV and returns (milliseconds to first output, milliseconds in total)."""
+    start = time.perf_counter()
+    proc = subprocess.Popen(argv, cwd=cwd, env=env, stdout=subprocess.PIPE,
+                            stderr=subprocess.DEVNULL)
+    first = proc.stdout.read(1)
+    first_output = time.perf_counter()
+    proc.stdout.read()
+    proc.wait()
+    end = time.perf_counter()
+    if not first:
+        first_output = end
+    return (first_output - start) * 1000, (end - start) * 1000
+
+
+def measure(argv, cwd, env, runs):
+    cold = timed(argv, cwd, env)
+    warm = [timed(argv, cwd, env) for _ in range(runs)]
+    return (cold, (statistics.median(t[0] for t in warm),
+                   statistics.median(t[1] for t in warm)))
+
+
+def setup(repo, jar, commits):
+    def gitlet(*args):
+        subprocess.run(["java", "-cp", jar, "gitlet.Main"] + list(args), cwd=repo,
+                       check=True, stdout=subprocess.DEVNULL)
+
+    gitlet("init")
+    for i in range(commits):
+        with open(os.path.join(repo, "file%d.txt" % (i % 10)), "w") as f:
+            f.write("version %d\n" % i)
+        gitlet("add", "file%d.txt" % (i % 10))
+        gitlet("commit", "commit %d" % i)
+
+
+def start_server(repo, env):
+    server = subprocess.Popen([LAUNCHER, "server"], cwd=repo, env=env,
+                              stdout=subprocess.PIPE, stderr=subprocess.DEVNULL)
+    server.stdout.readline()
+    return server
+
+
+def main():
+    parser = argparse.ArgumentParser(
+        description="Measure cold and warm startup time of gitlet commands.")
+    parser.add_argument("--jar", default=os.path.join(PROJECT, "target", "gitlet.jar"))
+    parser.add_argument("--runs", type=int, default=10)
+    parser.add_argument("--commits", type=int, default=20)
+    parser.add_argument("commands", nargs="*", default=DEFAULT_COMMANDS)
+    opts = parser.parse_args()
+
+    jar = os.path.abspath(opts.jar)
+    if not os.path.isfile(jar):
+        sys.exit("No jar at %s; build it with `mvn -P cds package`." % jar)
+    env = dict(os.environ, GITLET_JAR=jar)
+
+    repo = tempfile.mkdtemp(prefix="gitlet-bench-")
+    try:
+        setup(repo, jar, opts.commits)
+        print("command\tway\tcold first\tcold total\twarm first\twarm total")
+        for command in opts.commands:
+            args = shlex.split(command)
+            ways = [("plain", ["java", "-cp", jar, "gitlet.Main"] + args),
+                    ("cds", [LAUNCHER] + args)]
+            for way, argv in ways:
+                report(command, way, measure(argv, repo, env, opts.runs))
+            server = start_server(repo, env)
+            try:
+                report(command, "server", measure([LAUNCHER] + args, repo, env, opts.runs))
+            finally:
+                server.terminate()
+                server.wait()
+    finally:
+        shutil.rmtree(repo)
+
+
+def report(command, way, result):
+    (cold_first, cold_total), (warm_first, warm_total) = result
+    print("%s\t%s\t%.0f\t%.0f\t%.0f\t%.0f" % (command, way, cold_first, cold_total,
+                                              warm_first, warm_total))
+    sys.stdout.flush()
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,16 @@
+package gitlet;
+
+/**
+ * Thrown by {@link Utils#abort} once its message is printed, to end the command.
+ * {@link Main#main} exits on it as if the command had finished, and a {@link Server}
+ * goes on to its next client.
+ *
+ * @author huang.kai
+ */
+class Abort extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Abort() {
+        super(null, null, false, false);
+    }
+}
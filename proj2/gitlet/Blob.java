@@ -1,16 +1,34 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Represents a blob object that stores file content snapshot.
  * Blob ID is generated by SHA-1 hash of file content.
  * Identical content shares the same blob.
+ * <p>
+ * Blobs are stored compressed by {@link ObjectStore}; this class is kept for small
+ * in-memory contents and for reading blobs that older repositories serialized directly.
  *
  * @author huang.kai
  */
 public class Blob implements Serializable {
+    /**
+     * Fixed so that blobs serialized by older versions of this class still deserialize.
+     */
+    private static final long serialVersionUID = -5650316753170529203L;
+
+    /**
+     * Size of the buffer that files are streamed through when hashed or stored.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * The content of the file.
      */
@@ -29,14 +47,6 @@ public class Blob implements Serializable {
         this.blobID = generateID();
     }
 
-    /**
-     * Creates a new Blob with the given file.
-     */
-    public Blob(File file) {
-        this.content = Utils.readContents(file);
-        this.blobID = generateID();
-    }
-
     /**
      * Returns the ID of this blob.
      */
@@ -51,6 +61,34 @@ public class Blob implements Serializable {
         return content;
     }
 
+    /**
+     * Returns the blob ID of the file's content, read through a fixed-size buffer
+     * so that the file never has to fit in memory.
+     */
+    public static String hash(File file) {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Failed to read %s: %s", file, excp.getMessage());
+        }
+        return PackFile.toHex(digest.digest());
+    }
+
+    /**
+     * Returns a new SHA-1 digest, the hash that blob IDs are made of.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
     /**
      * Generates the ID based on content.
      */
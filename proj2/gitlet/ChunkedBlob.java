@@ -0,0 +1,75 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the stored form of a blob split into chunks by {@link Chunker}:
+ * the IDs and lengths of its chunks, in order. The blob keeps the ID of its whole content,
+ * so trees and commits do not know whether a blob is chunked.
+ * <p>
+ * Layout: {@link #MAGIC} | count, followed by {@code chunk ID (20 bytes) | length} per chunk.
+ *
+ * @author huang.kai
+ */
+class ChunkedBlob {
+    static final byte[] MAGIC = {'G', 'B', 'C', 'K'};
+
+    private final List<String> chunkIDs;
+    private final List<Integer> lengths;
+
+    ChunkedBlob(List<String> chunkIDs, List<Integer> lengths) {
+        this.chunkIDs = chunkIDs;
+        this.lengths = lengths;
+    }
+
+    List<String> getChunkIDs() {
+        return Collections.unmodifiableList(chunkIDs);
+    }
+
+    /**
+     * Returns the length of chunk I.
+     */
+    int lengthOf(int i) {
+        return lengths.get(i);
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(chunkIDs.size());
+            for (int i = 0; i < chunkIDs.size(); i++) {
+                Codec.writeID(out, chunkIDs.get(i));
+                out.writeInt(lengths.get(i));
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Failed to encode chunk list: %s", excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the chunk list that follows {@link #MAGIC} in IN.
+     */
+    static ChunkedBlob read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int count = data.readInt();
+        if (count < 0) {
+            throw Utils.error("Corrupt chunk list");
+        }
+        List<String> chunkIDs = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunkIDs.add(Codec.readID(data));
+            lengths.add(data.readInt());
+        }
+        return new ChunkedBlob(chunkIDs, lengths);
+    }
+}
@@ -0,0 +1,104 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a stream into content-defined chunks with FastCDC.
+ * <p>
+ * A gear hash, {@code hash = (hash << 1) + GEAR[byte]}, is rolled over the bytes, and a chunk
+ * ends where the high bits of the hash selected by a mask are all zero. Since the hash only
+ * depends on the last 64 bytes, boundaries move with the content: inserting a byte near the
+ * front of a file changes the chunk it falls into, and every later chunk stays the same.
+ * <p>
+ * Chunks are between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes. Following FastCDC's
+ * normalized chunking, a stricter mask is used before {@link #AVERAGE_SIZE} and a looser one
+ * after it, which keeps most chunks close to the average.
+ *
+ * @author huang.kai
+ */
+class Chunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * The top 18 bits: a boundary every 256 KiB on average, used before the average size.
+     */
+    private static final long MASK_SMALL = 0xffffc00000000000L;
+
+    /**
+     * The top 14 bits: a boundary every 16 KiB on average, used after the average size.
+     */
+    private static final long MASK_LARGE = 0xfffc000000000000L;
+
+    /**
+     * Random values for each byte. They come from a fixed seed and must never change,
+     * or the chunks of a file would no longer match those stored before.
+     */
+    private static final long[] GEAR = new SplittableRandom(0x6769746c6574L).longs(256).toArray();
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_SIZE];
+
+    /**
+     * Number of bytes in {@link #buffer} that have not been returned yet.
+     */
+    private int buffered;
+
+    private boolean eof;
+
+    Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next chunk of the stream, or null at its end.
+     */
+    byte[] next() throws IOException {
+        while (!eof && buffered < MAX_SIZE) {
+            int n = in.read(buffer, buffered, MAX_SIZE - buffered);
+            if (n < 0) {
+                eof = true;
+            } else {
+                buffered += n;
+            }
+        }
+        if (buffered == 0) {
+            return null;
+        }
+        int length = cut(buffer, buffered);
+        byte[] chunk = Arrays.copyOf(buffer, length);
+        System.arraycopy(buffer, length, buffer, 0, buffered - length);
+        buffered -= length;
+        return chunk;
+    }
+
+    /**
+     * Returns the length of the chunk at the start of the first N bytes of DATA.
+     */
+    static int cut(byte[] data, int n) {
+        if (n <= MIN_SIZE) {
+            return n;
+        }
+        int normal = Math.min(n, AVERAGE_SIZE);
+        int end = Math.min(n, MAX_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
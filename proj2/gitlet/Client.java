@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A thin entry point to Gitlet: runs the command in the {@link Server} of the repository
+ * in the working directory if one is listening, or in this process like {@link Main} if not.
+ * <p>
+ * Either way, the command prints the same output, to the same streams, and exits with the
+ * same status. It loads none of Gitlet's other classes unless it runs the command itself.
+ *
+ * @author huang.kai
+ */
+public class Client {
+
+    /**
+     * Usage: java gitlet.Client ARGS, with the same ARGS as {@link Main}.
+     */
+    public static void main(String[] args) {
+        SocketChannel channel = connect(args);
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+        System.exit(forward(channel, args));
+    }
+
+    /**
+     * Connects to the server of the repository, or returns null if there is none to run ARGS.
+     * Starting a server or a daemon always happens in this process.
+     */
+    private static SocketChannel connect(String[] args) {
+        Path socket = Path.of(Server.SOCKET);
+        String command = command(args);
+        if (!Files.exists(socket) || "server".equals(command) || "daemon".equals(command)) {
+            return null;
+        }
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException excp) {
+            // The socket of a server that was killed outright.
+            return null;
+        }
+    }
+
+    /**
+     * Returns the command word of ARGS, skipping the global options before it as
+     * {@link Main} does, or null if there is none.
+     */
+    private static String command(String[] args) {
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            i += args[i].equals("--jobs") ? 2 : 1;
+        }
+        return i < args.length ? args[i] : null;
+    }
+
+    /**
+     * Runs ARGS in the server and copies its output to this process,
+     * returning the exit status of the command.
+     */
+    private static int forward(SocketChannel channel, String[] args) {
+        try (channel) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(request);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(request.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            FileOutputStream stderr = new FileOutputStream(FileDescriptor.err);
+            boolean stdoutOpen = true;
+            ByteBuffer header = ByteBuffer.allocate(5);
+            byte[] data = new byte[1 << 16];
+            while (true) {
+                readFully(channel, header.clear());
+                byte type = header.get(0);
+                int length = header.getInt(1);
+                if (type == Server.EXIT) {
+                    return length;
+                }
+                if (length > data.length) {
+                    data = new byte[Math.max(length, 2 * data.length)];
+                }
+                readFully(channel, ByteBuffer.wrap(data, 0, length));
+                if (type == Server.STDERR) {
+                    stderr.write(data, 0, length);
+                } else if (stdoutOpen) {
+                    try {
+                        stdout.write(data, 0, length);
+                    } catch (IOException excp) {
+                        // Let the command see the broken pipe, and wait for it to finish.
+                        stdoutOpen = false;
+                        channel.write(ByteBuffer.wrap(new byte[]{Server.STDOUT_CLOSED}));
+                    }
+                }
+            }
+        } catch (IOException excp) {
+            System.err.println("gitlet: lost the connection to the server: " + excp.getMessage());
+            return 1;
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("the server closed it");
+            }
+        }
+    }
+}
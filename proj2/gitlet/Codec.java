@@ -0,0 +1,159 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static gitlet.Utils.*;
+
+/**
+ * The binary encoding of the objects gitlet keeps on disk: commits, trees,
+ * the staging area and the list of remotes.
+ * <p>
+ * Every encoded object starts with {@code "GL" | type | version}, followed by the fields
+ * of the object in a fixed order: integers big-endian, strings as a length and their UTF-8
+ * bytes, IDs as 20 raw bytes. Equal objects therefore always encode to equal bytes, which is
+ * what commit IDs are hashed from. Each class writes and reads its own fields, see
+ * {@link Commit#encode()} and {@link Commit#decode(String, ByteBuffer)}.
+ * <p>
+ * Objects written before the codec existed are Java-serialized; their bytes start with
+ * the serialization stream magic, and {@link #decode} still reads them that way.
+ *
+ * @author huang.kai
+ */
+class Codec {
+    static final byte COMMIT = 1;
+    static final byte TREE = 2;
+    static final byte STAGE = 3;
+    static final byte REMOTES = 4;
+    static final byte STAGE_JOURNAL = 5;
+
+    /**
+     * The newest version of the encoding, shared by every type.
+     */
+    static final byte VERSION = 1;
+
+    private static final byte[] MAGIC = {'G', 'L'};
+
+    /**
+     * First two bytes of every Java serialization stream.
+     */
+    private static final int SERIALIZATION_MAGIC = 0xaced;
+
+    /**
+     * Writes the fields of one object.
+     */
+    interface Encoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the fields of one object, of the given encoding version.
+     */
+    interface Decoder<T> {
+        T decode(DataInputStream in, int version) throws IOException;
+    }
+
+    /**
+     * Returns the header for TYPE followed by what ENCODER writes.
+     */
+    static byte[] encode(byte type, Encoder encoder) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(type);
+            out.writeByte(VERSION);
+            encoder.encode(out);
+        } catch (IOException excp) {
+            throw error("Failed to encode object: %s", excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes BYTES, an object of TYPE, with DECODER,
+     * or with Java serialization as LEGACY if that is how they were written.
+     */
+    static <T extends Serializable> T decode(byte[] bytes, byte type, Class<T> legacy, Decoder<T> decoder) {
+        return decode(ByteBuffer.wrap(bytes), type, legacy, decoder);
+    }
+
+    /**
+     * Decodes the remaining bytes of BYTES as {@link #decode(byte[], byte, Class, Decoder)} does,
+     * reading them in place, e.g. straight from a mapped pack. The position of BYTES is left as is.
+     */
+    static <T extends Serializable> T decode(ByteBuffer bytes, byte type, Class<T> legacy, Decoder<T> decoder) {
+        ByteBuffer buf = bytes.slice();
+        if (isSerialized(buf)) {
+            return deserialize(new PackFile.BufferInputStream(buf), legacy);
+        }
+        if (buf.limit() < 4 || buf.get(0) != MAGIC[0] || buf.get(1) != MAGIC[1] || buf.get(2) != type) {
+            throw error("Corrupt %s object.", legacy.getSimpleName().toLowerCase());
+        }
+        byte version = buf.get(3);
+        if (version < 1 || version > VERSION) {
+            throw error("Unsupported %s encoding version %d.", legacy.getSimpleName().toLowerCase(), version);
+        }
+        try (DataInputStream in = new DataInputStream(new PackFile.BufferInputStream(buf.position(4)))) {
+            return decoder.decode(in, version);
+        } catch (IOException excp) {
+            throw error("Corrupt %s object: %s", legacy.getSimpleName().toLowerCase(), excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether BYTES were written by Java serialization.
+     */
+    static boolean isSerialized(byte[] bytes) {
+        return isSerialized(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Returns whether the remaining bytes of BUF were written by Java serialization.
+     */
+    static boolean isSerialized(ByteBuffer buf) {
+        return buf.remaining() >= 2
+                && ((buf.get(buf.position()) & 0xff) << 8 | (buf.get(buf.position() + 1) & 0xff)) == SERIALIZATION_MAGIC;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}. Its bytes are buffered as they arrive,
+     * so that a corrupt length read from a connection fails at its end rather than at allocation.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw error("Corrupt string length %d", length);
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeID(DataOutputStream out, String id) throws IOException {
+        byte[] bytes = PackFile.toBytes(id);
+        if (bytes == null) {
+            throw new IOException("invalid id " + id);
+        }
+        out.write(bytes);
+    }
+
+    static String readID(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[UID_LENGTH / 2];
+        in.readFully(bytes);
+        return PackFile.toHex(bytes);
+    }
+}
@@ -1,7 +1,10 @@
 package gitlet;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 /**
@@ -11,8 +14,14 @@ import java.util.*;
  *
  */
 public class Commit implements Serializable {
-    private static final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy Z", Locale.US);
+    /**
+     * Pinned to the value of the original class, so that commits written before trees existed
+     * still deserialize, with a null {@link #tree}.
+     */
+    private static final long serialVersionUID = 8040425247489535821L;
+
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy Z", Locale.US).withZone(ZoneId.systemDefault());
 
     /**
      * The message of the commit.
@@ -35,52 +44,90 @@ public class Commit implements Serializable {
     private final Date timestamp;
 
     /**
-     * The blobs of the commit.
+     * The blobs of a commit made before trees existed, null for every other commit.
      * <p>
      * Maps filename to blob ID.
      */
     private final Map<String, String> blobs;
 
+    /**
+     * The ID of the root tree of the commit's snapshot.
+     */
+    private final String tree;
+
     /**
      * The ID of the commit.
      */
     private final String commitID;
-
     public Commit() {
         this.message = "initial commit";
         this.timestamp = new Date(0);
         this.parent = null;
         this.secondParent = null;
-        this.blobs = new TreeMap<>();
+        this.blobs = null;
+        this.tree = Tree.EMPTY.getTreeID();
         this.commitID = generateID();
     }
 
-    public Commit(String message, String parent, Map<String, String> blobs) {
+    public Commit(String message, String parent, String tree) {
         this.message = message;
         this.parent = parent;
         this.secondParent = null;
         this.timestamp = new Date();
-        this.blobs = blobs;
+        this.blobs = null;
+        this.tree = tree;
         this.commitID = generateID();
     }
 
-    public Commit(String message, String parent, String secondParent, Map<String, String> blobs) {
+    public Commit(String message, String parent, String secondParent, String tree) {
         this.message = message;
         this.timestamp = new Date();
         this.parent = parent;
         this.secondParent = secondParent;
-        this.blobs = blobs;
+        this.blobs = null;
+        this.tree = tree;
         this.commitID = generateID();
     }
 
+    /**
+     * Creates a commit decoded from its binary form.
+     */
+    private Commit(String message, String parent, String secondParent, Date timestamp, String tree,
+                   String commitID) {
+        this.message = message;
+        this.parent = parent;
+        this.secondParent = secondParent;
+        this.timestamp = timestamp;
+        this.blobs = null;
+        this.tree = tree;
+        this.commitID = commitID;
+    }
+
     public String getMessage() {
         return message;
     }
 
+    /**
+     * Returns roughly how many bytes the commit takes in memory, for caches.
+     */
+    long weight() {
+        return 256 + 2L * message.length() + (blobs == null ? 0 : 160L * blobs.size());
+    }
+
+    /**
+     * Returns the blobs of a commit made before trees existed, or null if the commit has a tree.
+     */
     public Map<String, String> getBlobs() {
         return blobs;
     }
 
+    /**
+     * Returns the ID of the root tree, or null if the commit was made before trees existed.
+     */
+    public String getTree() {
+        return tree;
+    }
+
     public String getCommitID() {
         return commitID;
     }
@@ -93,11 +140,15 @@ public class Commit implements Serializable {
         return secondParent;
     }
 
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
     /**
      * Returns formatted timestamp string.
      */
     private String getFormattedDate() {
-        return DATE_FORMAT.format(timestamp);
+        return DATE_FORMAT.format(timestamp.toInstant());
     }
 
     private boolean isMergeCommit() {
@@ -106,30 +157,56 @@ public class Commit implements Serializable {
 
 
     /**
-     * Returns formatted commit information for log display.
+     * Appends the log entry of the commit to OUT piece by piece, without building a string first.
      */
-    public String getLogString() {
+    void appendLog(Appendable out) throws IOException {
+        out.append("===\ncommit ").append(commitID).append('\n');
         if (isMergeCommit()) {
-            return String.format("""
-                    ===
-                    commit %s
-                    Merge: %s %s
-                    Date: %s
-                    %s
-                    """, commitID, parent.substring(0, 7), secondParent.substring(0, 7), getFormattedDate(), message);
+            out.append("Merge: ").append(parent, 0, 7).append(' ').append(secondParent, 0, 7).append('\n');
         }
+        out.append("Date: ").append(getFormattedDate()).append('\n')
+                .append(message).append('\n');
+    }
 
-        return String.format("""
-                ===
-                commit %s
-                Date: %s
-                %s
-                """, commitID, getFormattedDate(), message);
+
+    /**
+     * Returns the bytes the commit is stored as: its fields in the binary form of {@link Codec},
+     * which are also what its ID is hashed from. Commits read from Java serialization have IDs
+     * hashed from that form instead, so their stored bytes are copied as they are, never re-encoded.
+     */
+    byte[] encode() {
+        return Codec.encode(Codec.COMMIT, out -> {
+            Codec.writeString(out, message);
+            out.writeLong(timestamp.getTime());
+            out.writeByte(parent == null ? 0 : secondParent == null ? 1 : 2);
+            if (parent != null) {
+                Codec.writeID(out, parent);
+            }
+            if (secondParent != null) {
+                Codec.writeID(out, secondParent);
+            }
+            Codec.writeID(out, tree);
+        });
     }
 
+    /**
+     * Returns the commit with the given ID stored as BYTES, binary or Java-serialized.
+     * The ID is the name the bytes were stored under, so they are not hashed again.
+     */
+    static Commit decode(String commitID, ByteBuffer bytes) {
+        return Codec.decode(bytes, Codec.COMMIT, Commit.class, (in, version) -> {
+            String message = Codec.readString(in);
+            Date timestamp = new Date(in.readLong());
+            int parents = in.readUnsignedByte();
+            String parent = parents >= 1 ? Codec.readID(in) : null;
+            String secondParent = parents >= 2 ? Codec.readID(in) : null;
+            String tree = Codec.readID(in);
+            return new Commit(message, parent, secondParent, timestamp, tree, commitID);
+        });
+    }
 
     private String generateID() {
-        return Utils.sha1((Object) Utils.serialize(this));
+        return Utils.sha1((Object) encode());
     }
 
     @Override
@@ -0,0 +1,540 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the commit-graph of one .gitlet directory, stored in {@code objects/commit-graph}.
+ * <p>
+ * Every commit gets a fixed-width record holding its ID, the positions of its parents
+ * in the graph, its generation number and its timestamp, so history walks follow parent
+ * positions without reading a single commit object. The generation number of a root commit
+ * is 1, and that of any other commit is one more than the largest of its parents'.
+ * <p>
+ * Each record also holds a Bloom filter of the paths the commit changed from its first parent,
+ * so that {@code log -- <file>} skips the commits that did not touch the file without reading them.
+ * The filter is a fixed {@link #FILTER_SIZE} bytes, in which each path sets {@link #FILTER_HASHES}
+ * bits, and is only kept for commits changing at most {@link #MAX_FILTER_PATHS} paths; a commit
+ * that changed more may have changed any path. Filters are written for the commits made here,
+ * and {@link #writeFilters} fills in those of the commits added without one.
+ * <p>
+ * Layout: {@code "CGPH" | version}, followed by one record per commit,
+ * {@code id (20 bytes) | parent | second parent | generation | timestamp (ms) | filter state | filter},
+ * where a missing parent is {@link #NONE}. Parents are always written before their children,
+ * so the file only ever grows by appending; commits that are not in the graph yet,
+ * e.g. in a repository created before it existed, are added on first use.
+ *
+ * @author huang.kai
+ */
+class CommitGraph {
+    /**
+     * Position of a parent that does not exist.
+     */
+    static final int NONE = -1;
+
+    private static final int MAGIC = 0x43475048;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int LOOKUP_MAGIC = 0x43474c4b;
+    private static final int LOOKUP_VERSION = 1;
+    private static final int ID_SIZE = UID_LENGTH / 2;
+    private static final int FILTER_STATE_OFFSET = ID_SIZE + 3 * Integer.BYTES + Long.BYTES;
+    private static final int FILTER_OFFSET = FILTER_STATE_OFFSET + Integer.BYTES;
+    private static final int FILTER_SIZE = 64;
+    private static final int RECORD_SIZE = FILTER_OFFSET + FILTER_SIZE;
+
+    private static final int FILTER_HASHES = 7;
+    private static final int MAX_FILTER_PATHS = 64;
+
+    /**
+     * States of the filter of a record: not computed yet, holding the changed paths,
+     * or left empty because the commit changed too many paths.
+     */
+    private static final int NO_FILTER = 0;
+    private static final int FILTER = 1;
+    private static final int TOO_MANY_PATHS = 2;
+
+    /**
+     * Paint of a commit reachable from the commit being sent, in {@link #missing}.
+     */
+    private static final int WANT = 1;
+
+    /**
+     * Paint of a commit reachable from a head of the receiving repository, in {@link #missing}.
+     */
+    private static final int HAVE = 2;
+
+    /**
+     * Opened graphs, keyed by their absolute .gitlet directory.
+     */
+    private static final Map<File, CommitGraph> GRAPHS = new HashMap<>();
+
+    private final File file;
+    private final ObjectStore store;
+
+    /**
+     * Table from commit ID to position, kept in {@code objects/commit-graph-lookup} and brought
+     * up to date with the records before each lookup. Every record has exactly one entry,
+     * so the number of entries is the number of records the table covers.
+     */
+    private final IdTable lookup;
+
+    /**
+     * Records read from disk, mapped on first use, followed by the records appended since.
+     */
+    private ByteBuffer records;
+
+    /**
+     * Number of records in {@link #records}.
+     */
+    private int count;
+
+    /**
+     * Whether {@link #update} is appending records, which the lookup table does not cover yet.
+     */
+    private boolean appending;
+
+    private CommitGraph(File gitletDir) {
+        this.file = join(gitletDir, "objects", "commit-graph");
+        this.store = ObjectStore.open(gitletDir);
+        this.lookup = new IdTable(join(gitletDir, "objects", "commit-graph-lookup"), LOOKUP_MAGIC, LOOKUP_VERSION, true);
+    }
+
+    /**
+     * Returns the commit-graph of the given .gitlet directory.
+     */
+    static CommitGraph open(File gitletDir) {
+        return GRAPHS.computeIfAbsent(gitletDir.getAbsoluteFile(), CommitGraph::new);
+    }
+
+    /**
+     * Forgets the opened graph of the given .gitlet directory, so that the next {@link #open}
+     * sees the records other processes appended since.
+     */
+    static void evict(File gitletDir) {
+        GRAPHS.remove(gitletDir.getAbsoluteFile());
+    }
+
+    /**
+     * Returns the position of the commit in the graph, adding it and its missing ancestors first.
+     */
+    int indexOf(String commitID) {
+        int pos = find(commitID);
+        if (pos == NONE) {
+            update(commitID);
+            pos = find(commitID);
+        }
+        return pos;
+    }
+
+    String id(int pos) {
+        byte[] id = new byte[ID_SIZE];
+        records().get(pos * RECORD_SIZE, id);
+        return PackFile.toHex(id);
+    }
+
+    int parent(int pos) {
+        return records().getInt(pos * RECORD_SIZE + ID_SIZE);
+    }
+
+    int secondParent(int pos) {
+        return records().getInt(pos * RECORD_SIZE + ID_SIZE + Integer.BYTES);
+    }
+
+    int generation(int pos) {
+        return records().getInt(pos * RECORD_SIZE + ID_SIZE + 2 * Integer.BYTES);
+    }
+
+    long timestamp(int pos) {
+        return records().getLong(pos * RECORD_SIZE + ID_SIZE + 3 * Integer.BYTES);
+    }
+
+    /**
+     * Returns false if the commit at POS certainly did not change PATH from its first parent,
+     * and true if it may have, including when the commit has no filter.
+     */
+    boolean mayHaveChanged(int pos, String path) {
+        ByteBuffer all = records();
+        int offset = pos * RECORD_SIZE;
+        if (all.getInt(offset + FILTER_STATE_OFFSET) != FILTER) {
+            return true;
+        }
+        for (int bit : filterBits(path)) {
+            if ((all.get(offset + FILTER_OFFSET + bit / 8) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the IDs of the commits reachable from WANT but from none of HAVES, which are
+     * the commits a repository whose branch heads are HAVES lacks, newest generation first.
+     * Heads that are not in this repository are ignored.
+     * <p>
+     * Commits are visited in decreasing generation and painted by the want, by a have, or both,
+     * passing their paint on to their parents. Every path from a have to a commit runs through
+     * commits of higher generation, so a commit painted only by the want when it is visited
+     * is missing. The walk stops once no such commit is left to visit, so it costs about
+     * the number of missing commits, however long the shared history is.
+     */
+    List<String> missing(String want, Collection<String> haves) {
+        Map<Integer, Integer> paint = new HashMap<>();
+        Queue<Integer> queue = new PriorityQueue<>(Comparator.comparingInt(this::generation).reversed());
+        Set<Integer> wantOnly = new HashSet<>();
+        for (String have : haves) {
+            if (store.hasCommit(have)) {
+                paint(indexOf(have), HAVE, paint, queue, wantOnly);
+            }
+        }
+        paint(indexOf(want), WANT, paint, queue, wantOnly);
+
+        List<String> missing = new ArrayList<>();
+        while (!wantOnly.isEmpty()) {
+            int pos = queue.remove();
+            int flags = paint.get(pos);
+            wantOnly.remove(pos);
+            if (flags == WANT) {
+                missing.add(id(pos));
+            }
+            for (int parent : new int[]{parent(pos), secondParent(pos)}) {
+                if (parent != NONE) {
+                    paint(parent, flags, paint, queue, wantOnly);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Adds FLAGS to the paint of the commit at POS, queueing it the first time it is painted.
+     * It is still queued when painted again, as only its children, of higher generation, paint it.
+     */
+    private static void paint(int pos, int flags, Map<Integer, Integer> paint, Queue<Integer> queue,
+                              Set<Integer> wantOnly) {
+        Integer old = paint.get(pos);
+        if (old == null) {
+            queue.add(pos);
+        }
+        int merged = old == null ? flags : old | flags;
+        paint.put(pos, merged);
+        if (merged == WANT) {
+            wantOnly.add(pos);
+        } else {
+            wantOnly.remove(pos);
+        }
+    }
+
+    /**
+     * Adds the commit and every ancestor of it that is not in the graph yet, parents first.
+     * Only the commits being added are read from the object store.
+     */
+    void update(String commitID) {
+        update(commitID, null);
+    }
+
+    /**
+     * Adds the commit and its missing ancestors as {@link #update(String)} does, keeping
+     * CHANGED_PATHS, the paths the commit changed from its first parent, in its filter.
+     */
+    void update(String commitID, Collection<String> changedPaths) {
+        reloadIfChanged();
+        if (find(commitID) != NONE) {
+            return;
+        }
+        // Positions of the commits added by this walk; the others are in the lookup table,
+        // which is only brought up to date once the walk is over.
+        Map<String, Integer> added = new HashMap<>();
+        appending = true;
+        try (DataOutputStream out = openForAppend()) {
+            // Iterative post-order walk, so that deep histories cannot overflow the stack.
+            Deque<Commit> pending = new ArrayDeque<>();
+            pending.push(readCommit(commitID));
+            while (!pending.isEmpty()) {
+                Commit commit = pending.peek();
+                Commit missing = missingParent(commit, added);
+                if (missing != null) {
+                    pending.push(missing);
+                    continue;
+                }
+                pending.pop();
+                if (position(commit.getCommitID(), added) == NONE) {
+                    Collection<String> paths = commit.getCommitID().equals(commitID) ? changedPaths : null;
+                    added.put(commit.getCommitID(), append(out, commit, added, paths));
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        } finally {
+            appending = false;
+        }
+        lookup();
+    }
+
+    /**
+     * Returns the position of the commit, which is either in ADDED or looked up, or {@link #NONE}.
+     */
+    private int position(String commitID, Map<String, Integer> added) {
+        Integer pos = added.get(commitID);
+        return pos != null ? pos : find(commitID);
+    }
+
+    /**
+     * Returns the first parent of COMMIT that is not in the graph, or null if both are.
+     */
+    private Commit missingParent(Commit commit, Map<String, Integer> added) {
+        for (String parentID : new String[]{commit.getParent(), commit.getSecondParent()}) {
+            if (parentID != null && position(parentID, added) == NONE) {
+                return readCommit(parentID);
+            }
+        }
+        return null;
+    }
+
+    private Commit readCommit(String commitID) {
+        Commit commit = store.readCommit(commitID);
+        if (commit == null) {
+            throw error("Missing commit %s", commitID);
+        }
+        return commit;
+    }
+
+    /**
+     * Computes the filters of the commits in the graph that have none, with CHANGED_PATHS
+     * giving the paths a commit changed from its first parent, and writes them in place.
+     * Returns how many filters were written.
+     */
+    int writeFilters(Function<String, Collection<String>> changedPaths) {
+        Map<Integer, Collection<String>> computed = new HashMap<>();
+        ByteBuffer all = records();
+        for (int pos = 0; pos < count; pos++) {
+            if (all.getInt(pos * RECORD_SIZE + FILTER_STATE_OFFSET) == NO_FILTER) {
+                computed.put(pos, changedPaths.apply(id(pos)));
+            }
+        }
+        if (computed.isEmpty()) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            // The filters reach the disk before the states that make them count,
+            // so that a crash never leaves a record claiming a filter it lacks.
+            for (Map.Entry<Integer, Collection<String>> entry : computed.entrySet()) {
+                writeAt(channel, entry.getKey(), FILTER_OFFSET, ByteBuffer.wrap(filter(entry.getValue())));
+            }
+            channel.force(false);
+            for (Map.Entry<Integer, Collection<String>> entry : computed.entrySet()) {
+                writeAt(channel, entry.getKey(), FILTER_STATE_OFFSET,
+                        ByteBuffer.allocate(Integer.BYTES).putInt(filterState(entry.getValue())).flip());
+            }
+            channel.force(false);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        records = null;
+        return computed.size();
+    }
+
+    private static void writeAt(FileChannel channel, int pos, int offset, ByteBuffer data) throws IOException {
+        long position = HEADER_SIZE + (long) pos * RECORD_SIZE + offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private static int filterState(Collection<String> paths) {
+        if (paths == null) {
+            return NO_FILTER;
+        }
+        return paths.size() > MAX_FILTER_PATHS ? TOO_MANY_PATHS : FILTER;
+    }
+
+    /**
+     * Returns the filter of PATHS, which is empty unless they are few enough to be kept.
+     */
+    private static byte[] filter(Collection<String> paths) {
+        byte[] filter = new byte[FILTER_SIZE];
+        if (filterState(paths) == FILTER) {
+            for (String path : paths) {
+                for (int bit : filterBits(path)) {
+                    filter[bit / 8] |= (byte) (1 << (bit % 8));
+                }
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns the bits PATH sets in a filter, from two hashes taken from its SHA-1.
+     */
+    private static int[] filterBits(String path) {
+        ByteBuffer digest = ByteBuffer.wrap(PackFile.toBytes(sha1(path)));
+        int h1 = digest.getInt(0);
+        int h2 = digest.getInt(4);
+        int[] bits = new int[FILTER_HASHES];
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            bits[i] = Math.floorMod(h1 + i * h2, FILTER_SIZE * 8);
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the record of COMMIT, whose parents are all in the graph, and returns its position.
+     * ADDED holds the positions of the commits added by the same walk. CHANGED_PATHS are
+     * the paths the commit changed from its first parent, or null if unknown.
+     */
+    private int append(DataOutputStream out, Commit commit, Map<String, Integer> added,
+                       Collection<String> changedPaths) throws IOException {
+        int parent = commit.getParent() == null ? NONE : position(commit.getParent(), added);
+        int secondParent = commit.getSecondParent() == null ? NONE : position(commit.getSecondParent(), added);
+        int generation = 1;
+        if (parent != NONE) {
+            generation = Math.max(generation, generation(parent) + 1);
+        }
+        if (secondParent != NONE) {
+            generation = Math.max(generation, generation(secondParent) + 1);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(PackFile.toBytes(commit.getCommitID()))
+                .putInt(parent)
+                .putInt(secondParent)
+                .putInt(generation)
+                .putLong(commit.getTimestamp().getTime())
+                .putInt(filterState(changedPaths))
+                .put(filter(changedPaths));
+        out.write(record.array());
+
+        ByteBuffer all = records();
+        if (all.capacity() < (count + 1) * RECORD_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * all.capacity(), (count + 1) * RECORD_SIZE));
+            grown.put(all.duplicate().clear().limit(count * RECORD_SIZE));
+            records = grown;
+        }
+        records.duplicate().position(count * RECORD_SIZE).put(record.array());
+        return count++;
+    }
+
+    /**
+     * Opens the file for appending records, writing its header first if it is new
+     * and dropping any partial record left by an interrupted write. The records kept are those
+     * in the file, which must be the ones read here: appends go after the file's own records.
+     */
+    private DataOutputStream openForAppend() throws IOException {
+        records();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length < HEADER_SIZE) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+            } else {
+                long whole = (length - HEADER_SIZE) / RECORD_SIZE;
+                if (whole != count) {
+                    throw error("Commit-graph %s changed while being updated", file);
+                }
+                raf.setLength(HEADER_SIZE + whole * RECORD_SIZE);
+            }
+        }
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Drops the records and lookup table read so far if the file no longer holds just those
+     * records, e.g. because another process appended to it, so that they are read again.
+     */
+    private void reloadIfChanged() {
+        if (records != null && file.length() != HEADER_SIZE + (long) count * RECORD_SIZE) {
+            records = null;
+            count = 0;
+            lookup.reload();
+        }
+    }
+
+    /**
+     * Looks the commit ID up in the lookup table. Returns its position, or {@link #NONE}.
+     */
+    private int find(String commitID) {
+        byte[] key = PackFile.toBytes(commitID);
+        if (key == null) {
+            return NONE;
+        }
+        int entry = lookup().find(key);
+        return entry < 0 ? NONE : lookup.value(entry);
+    }
+
+    /**
+     * Returns the lookup table, first adding entries for the records it does not cover yet,
+     * e.g. those appended since it was last used, or rebuilding it if it covers more records
+     * than there are.
+     */
+    private IdTable lookup() {
+        int covered = lookup.size();
+        if (!appending && covered != count()) {
+            int first = covered < count ? covered : 0;
+            List<byte[]> ids = new ArrayList<>();
+            int[] positions = new int[count - first];
+            for (int pos = first; pos < count; pos++) {
+                byte[] id = new byte[ID_SIZE];
+                records.get(pos * RECORD_SIZE, id);
+                ids.add(id);
+                positions[pos - first] = pos;
+            }
+            if (covered < count) {
+                lookup.append(ids, positions);
+            } else {
+                lookup.write(ids, positions);
+            }
+        }
+        return lookup;
+    }
+
+    private int count() {
+        records();
+        return count;
+    }
+
+    private ByteBuffer records() {
+        if (records == null) {
+            records = ByteBuffer.allocate(0);
+            if (file.isFile()) {
+                try (FileChannel channel = FileChannel.open(file.toPath())) {
+                    long size = channel.size();
+                    if (size >= HEADER_SIZE) {
+                        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                            throw error("Corrupt commit-graph %s", file);
+                        }
+                        count = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+                        records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                                (long) count * RECORD_SIZE);
+                    }
+                } catch (IOException excp) {
+                    throw error("Failed to read %s: %s", file, excp.getMessage());
+                }
+            }
+        }
+        return records;
+    }
+}
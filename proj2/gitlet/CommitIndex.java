@@ -0,0 +1,106 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the sorted index of every commit ID in a store, kept in {@code objects/commit-ids},
+ * so that an abbreviated ID resolves with a binary search instead of a directory listing.
+ * <p>
+ * It is an {@link IdTable} of bare IDs: new commits are appended to its tail, which is sorted
+ * into the rest once it grows too long.
+ *
+ * @author huang.kai
+ */
+class CommitIndex {
+    private static final int MAGIC = 0x43494458;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final IdTable table;
+
+    CommitIndex(File file) {
+        this.file = file;
+        this.table = new IdTable(file, MAGIC, VERSION, false);
+    }
+
+    boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Returns up to LIMIT distinct IDs that start with the hexadecimal PREFIX, in sorted order.
+     */
+    List<String> match(String prefix, int limit) {
+        byte[] low = bound(prefix, '0');
+        TreeSet<String> matches = new TreeSet<>();
+        if (low == null) {
+            return new ArrayList<>();
+        }
+        checkValid();
+        // Reads on from the first sorted ID that is not below the prefix while IDs match.
+        int sorted = table.sortedCount();
+        for (int i = table.lowerBound(low); i < sorted && matches.size() < limit; i++) {
+            String id = PackFile.toHex(table.id(i));
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            matches.add(id);
+        }
+        for (int i = sorted; i < table.size() && matches.size() < limit; i++) {
+            String id = PackFile.toHex(table.id(i));
+            if (id.startsWith(prefix)) {
+                matches.add(id);
+            }
+        }
+        return new ArrayList<>(matches);
+    }
+
+    /**
+     * Appends a new commit ID, rewriting the index sorted once the tail is too long.
+     */
+    void add(String commitID) {
+        byte[] id = PackFile.toBytes(commitID);
+        if (id == null) {
+            throw error("Invalid commit id %s", commitID);
+        }
+        checkValid();
+        table.append(List.of(id), null);
+    }
+
+    /**
+     * Replaces the index with the sorted, distinct IDS.
+     */
+    void write(Collection<String> ids) {
+        List<byte[]> sorted = new ArrayList<>();
+        for (String id : new TreeSet<>(ids)) {
+            sorted.add(PackFile.toBytes(id));
+        }
+        table.write(sorted, null);
+    }
+
+    private void checkValid() {
+        if (!table.isValid()) {
+            throw error("Corrupt commit index %s", file);
+        }
+    }
+
+    /**
+     * Returns the raw bytes of PREFIX padded to a full ID with PAD, or null if it is not hexadecimal.
+     */
+    private static byte[] bound(String prefix, char pad) {
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH) {
+            return null;
+        }
+        StringBuilder full = new StringBuilder(prefix);
+        while (full.length() < UID_LENGTH) {
+            full.append(pad);
+        }
+        return PackFile.toBytes(full.toString());
+    }
+}
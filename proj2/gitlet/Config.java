@@ -0,0 +1,91 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the configuration file of a .gitlet directory.
+ * <p>
+ * Stored as {@code key=value} lines in {@code .gitlet/config}. Repositories created
+ * before the file existed simply have no settings, and every key has a default.
+ *
+ * @author huang.kai
+ */
+class Config {
+    /**
+     * The repository format version, stored under {@link #FORMAT_VERSION}.
+     * <ul>
+     *     <li>0: every object is a Java-serialized file (no config file).</li>
+     *     <li>1: blobs are stored deflate-compressed.</li>
+     *     <li>2: commits, trees, the staging area and the remotes use the binary {@link Codec}.</li>
+     *     <li>3: blobs may be stored as lists of chunks.</li>
+     *     <li>4: the staging area may have a journal of changes besides its snapshot.</li>
+     * </ul>
+     */
+    static final String FORMAT_VERSION = "format.version";
+
+    /**
+     * Size in bytes from which files are stored as content-defined chunks, so that versions
+     * of a large file share their unchanged chunks. 0, the default, never chunks files.
+     */
+    static final String CHUNK_THRESHOLD = "chunk.threshold";
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private Config(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                properties.load(in);
+            } catch (IOException excp) {
+                throw error("Failed to read %s: %s", file, excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the configuration of the given .gitlet directory.
+     */
+    static Config read(File gitletDir) {
+        return new Config(join(gitletDir, "config"));
+    }
+
+    String get(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
+    int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException excp) {
+            throw error("Invalid value for %s: %s", key, value);
+        }
+    }
+
+    void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    /**
+     * Writes the configuration back to disk.
+     */
+    void save() {
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.store(out, null);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+    }
+}
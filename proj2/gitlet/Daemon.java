@@ -0,0 +1,251 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static gitlet.Utils.*;
+
+/**
+ * Serves one repository over TCP, for remotes added as {@code gitlet://host:port/}
+ * and reached through {@link DaemonTransport}.
+ * <p>
+ * On connecting, the daemon advertises its branches: {@code "GLDP" | version | count},
+ * then {@code name | head} per branch. The client then sends its requests back to back,
+ * without waiting for the answers, which come back in the same order:
+ * <ul>
+ *     <li>{@link #FETCH} {@code want | count | have...}: the daemon answers with a status, then
+ *     a pack of the commits reachable from the want and from none of the haves.</li>
+ *     <li>{@link #PUSH} {@code branch | has old | [old] | head | pack}: the daemon checks and stores
+ *     the pack and moves the branch from old to head, or refuses if the branch is no longer at old.
+ *     A pack that fails its checks, see {@link ObjectStore#receivePack}, ends the connection.</li>
+ *     <li>{@link #DONE}: the daemon closes the connection.</li>
+ * </ul>
+ * A status is {@link #OK}, or {@link #ERROR} followed by the message the client prints.
+ * Strings and IDs are written as by {@link Codec}, and packs as by {@link ObjectStore#streamPack}.
+ * <p>
+ * Each connection is served by its own thread, but requests touch the repository one at a time,
+ * and every request first drops the daemon's cached view of the repository, so that commits
+ * made there while it runs are seen. Pushes are refused unless the daemon was started with them allowed.
+ *
+ * @author huang.kai
+ */
+class Daemon {
+    static final int DEFAULT_PORT = 9419;
+
+    static final byte DONE = 0;
+    static final byte FETCH = 1;
+    static final byte PUSH = 2;
+
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+
+    private static final int MAGIC = 0x474c4450;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File gitletDir;
+    private final boolean allowPush;
+
+    Daemon(File gitletDir, boolean allowPush) {
+        this.gitletDir = gitletDir;
+        this.allowPush = allowPush;
+    }
+
+    /**
+     * Serves the repository on HOST and PORT until the process is killed.
+     * Port 0 picks a free port; the URL to add as a remote is printed once the daemon listens.
+     */
+    void serve(String host, int port) {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(host, port));
+            InetSocketAddress bound = (InetSocketAddress) server.getLocalAddress();
+            System.out.println("Listening on " + Transport.URL_SCHEME + bound.getHostString() + ":" + bound.getPort() + "/");
+            System.out.flush();
+            while (true) {
+                SocketChannel channel = server.accept();
+                Thread handler = new Thread(() -> handle(channel), "gitlet-daemon-" + channel.getRemoteAddress());
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException excp) {
+            throw error("Failed to serve on %s:%d: %s", host, port, excp.getMessage());
+        }
+    }
+
+    /**
+     * Serves one connection, reporting on standard error how it failed, if it did.
+     * A request that fails other than on the connection itself, e.g. because it is malformed,
+     * is also answered with an error, and ends the connection.
+     */
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream in = input(channel);
+            DataOutputStream out = output(channel);
+            try {
+                serve(in, out);
+            } catch (RuntimeException excp) {
+                String message = excp.getMessage() != null ? excp.getMessage() : excp.toString();
+                System.err.println("gitlet daemon: " + message);
+                writeError(out, message);
+                out.flush();
+            }
+        } catch (EOFException excp) {
+            System.err.println("gitlet daemon: client closed the connection early");
+        } catch (IOException excp) {
+            System.err.println("gitlet daemon: " + excp.getMessage());
+        }
+    }
+
+    /**
+     * Advertises the branches on OUT, then answers the requests read from IN until DONE.
+     */
+    private void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        synchronized (this) {
+            advertise(out);
+        }
+        out.flush();
+        // A client that gave up, e.g. on a refused push, may close without sending DONE.
+        for (int request = in.read(); request != DONE && request >= 0; request = in.read()) {
+            synchronized (this) {
+                ObjectStore.evict(gitletDir);
+                CommitGraph.evict(gitletDir);
+                if (request == FETCH) {
+                    fetch(in, out);
+                } else if (request == PUSH) {
+                    push(in, out);
+                } else {
+                    throw error("Unknown request %d", request);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private void advertise(DataOutputStream out) throws IOException {
+        Map<String, String> branches = Repository.readBranches(gitletDir);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(branches.size());
+        for (Map.Entry<String, String> branch : branches.entrySet()) {
+            Codec.writeString(out, branch.getKey());
+            Codec.writeID(out, branch.getValue());
+        }
+    }
+
+    private void fetch(DataInputStream in, DataOutputStream out) throws IOException {
+        String want = Codec.readID(in);
+        List<String> haves = new ArrayList<>();
+        for (int n = in.readInt(); n > 0; n--) {
+            haves.add(Codec.readID(in));
+        }
+        ObjectStore store = ObjectStore.open(gitletDir);
+        if (!store.hasCommit(want)) {
+            writeError(out, "That remote does not have that branch.");
+            return;
+        }
+        out.writeByte(OK);
+        store.streamPack(out, CommitGraph.open(gitletDir).missing(want, haves));
+    }
+
+    private void push(DataInputStream in, DataOutputStream out) throws IOException {
+        String branch = Codec.readString(in);
+        String oldHead = in.readBoolean() ? Codec.readID(in) : null;
+        String head = Codec.readID(in);
+        String current = Repository.readBranches(gitletDir).get(branch);
+        if (!allowPush) {
+            ObjectStore.skipPack(in);
+            writeError(out, "Pushing to this remote is not allowed.");
+        } else if (!isBranchName(branch)) {
+            ObjectStore.skipPack(in);
+            writeError(out, "Invalid branch name " + branch);
+        } else if (!Objects.equals(current, oldHead)) {
+            ObjectStore.skipPack(in);
+            writeError(out, "Please pull down remote changes before pushing.");
+        } else {
+            ObjectStore.open(gitletDir).receivePack(in, head);
+            CommitGraph.open(gitletDir).update(head);
+            Repository.writeBranchHead(gitletDir, branch, head);
+            out.writeByte(OK);
+        }
+    }
+
+    /**
+     * Returns whether NAME may be written under refs/heads without leaving it.
+     */
+    private static boolean isBranchName(String name) {
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..") || part.contains(File.separator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeError(DataOutputStream out, String message) throws IOException {
+        out.writeByte(ERROR);
+        Codec.writeString(out, message);
+    }
+
+    /**
+     * Reads the branches a daemon advertises on connecting: branch name -> head commit ID.
+     */
+    static Map<String, String> readAdvertisement(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw error("Not a gitlet daemon, or an incompatible one");
+        }
+        Map<String, String> branches = new HashMap<>();
+        for (int n = in.readInt(); n > 0; n--) {
+            branches.put(Codec.readString(in), Codec.readID(in));
+        }
+        return branches;
+    }
+
+    /**
+     * Reads the status of a request, printing the message of an error and exiting.
+     */
+    static void readStatus(DataInputStream in) throws IOException {
+        if (in.readByte() != OK) {
+            abort(Codec.readString(in));
+        }
+    }
+
+    /**
+     * Returns the address of a {@code gitlet://host[:port]/} URL, or null if URL is not one.
+     */
+    static InetSocketAddress parseURL(String url) {
+        try {
+            URI uri = new URI(url);
+            String path = uri.getPath();
+            if (uri.getHost() == null || (path != null && !path.isEmpty() && !path.equals("/"))) {
+                return null;
+            }
+            return new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+        } catch (URISyntaxException excp) {
+            return null;
+        }
+    }
+
+    static DataInputStream input(SocketChannel channel) {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+    }
+
+    static DataOutputStream output(SocketChannel channel) {
+        return new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    }
+}
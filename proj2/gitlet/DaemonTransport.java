@@ -0,0 +1,115 @@
+package gitlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * A {@link Transport} to a remote served by a {@link Daemon}, over one TCP connection.
+ * The branches are those the daemon advertised on connecting.
+ *
+ * @author huang.kai
+ */
+class DaemonTransport implements Transport {
+    private final String url;
+    private final File localGitletDir;
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<String, String> branches;
+
+    private DaemonTransport(String url, File localGitletDir, SocketChannel channel) throws IOException {
+        this.url = url;
+        this.localGitletDir = localGitletDir;
+        this.channel = channel;
+        this.in = Daemon.input(channel);
+        this.out = Daemon.output(channel);
+        this.branches = Daemon.readAdvertisement(in);
+    }
+
+    /**
+     * Connects to the daemon at URL, exiting as for a missing remote directory if there is none.
+     */
+    static DaemonTransport connect(String url, File localGitletDir) {
+        InetSocketAddress address = Daemon.parseURL(url);
+        if (address == null || address.isUnresolved()) {
+            abort("Remote directory not found.");
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open(address);
+            return new DaemonTransport(url, localGitletDir, channel);
+        } catch (IOException excp) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                // The connection is unusable either way.
+            }
+            abort("Remote directory not found.");
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, String> branches() {
+        return Collections.unmodifiableMap(branches);
+    }
+
+    @Override
+    public void fetch(String want) {
+        try {
+            out.writeByte(Daemon.FETCH);
+            Codec.writeID(out, want);
+            Collection<String> haves = Repository.readBranches(localGitletDir).values();
+            out.writeInt(haves.size());
+            for (String have : haves) {
+                Codec.writeID(out, have);
+            }
+            out.writeByte(Daemon.DONE);
+            out.flush();
+            Daemon.readStatus(in);
+            ObjectStore.open(localGitletDir).receivePack(in, want);
+        } catch (IOException excp) {
+            throw error("Failed to fetch from %s: %s", url, excp.getMessage());
+        }
+    }
+
+    @Override
+    public void push(String branch, String oldHead, String head) {
+        try {
+            out.writeByte(Daemon.PUSH);
+            Codec.writeString(out, branch);
+            out.writeBoolean(oldHead != null);
+            if (oldHead != null) {
+                Codec.writeID(out, oldHead);
+            }
+            Codec.writeID(out, head);
+            ObjectStore.open(localGitletDir).streamPack(out,
+                    CommitGraph.open(localGitletDir).missing(head, branches.values()));
+            out.writeByte(Daemon.DONE);
+            out.flush();
+            Daemon.readStatus(in);
+        } catch (IOException excp) {
+            throw error("Failed to push to %s: %s", url, excp.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing is left to send.
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * Binary deltas: a description of one byte sequence, the target, in terms of another, the base.
+ * <p>
+ * A delta is {@code base length | target length}, followed by instructions that rebuild the
+ * target from start to end: {@code COPY offset length} copies a range of the base, and
+ * {@code INSERT length bytes} adds bytes the base does not have. Numbers are unsigned
+ * varints, 7 bits per byte, low bits first.
+ * <p>
+ * Deltas are found as in git: the base is indexed by the hash of every {@link #BLOCK}-byte
+ * block at a block boundary, then a rolling hash slides over the target, and every block
+ * found in the base is extended in both directions into the longest copy.
+ *
+ * @author huang.kai
+ */
+class Delta {
+    /**
+     * Length of the blocks the base is indexed by, and so the shortest copy found.
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * Multiplier of the rolling hash, and its weight for the byte leaving a block.
+     */
+    private static final int PRIME = 31;
+    private static final int PRIME_POW = pow(PRIME, BLOCK - 1);
+
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+
+    /**
+     * Returns a delta that rebuilds TARGET from BASE, or null if it would be longer than LIMIT.
+     */
+    static byte[] create(byte[] base, byte[] target, int limit) {
+        int[] index = index(base);
+        int mask = index.length - 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        int insertStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            int candidate = index[hash & mask] - 1;
+            if (candidate >= 0 && Arrays.equals(base, candidate, candidate + BLOCK, target, i, i + BLOCK)) {
+                // Extends the match backwards over bytes not yet emitted, then forwards.
+                int s = candidate;
+                int t = i;
+                while (t > insertStart && s > 0 && base[s - 1] == target[t - 1]) {
+                    s--;
+                    t--;
+                }
+                int length = i - t + BLOCK;
+                while (s + length < base.length && t + length < target.length
+                        && base[s + length] == target[t + length]) {
+                    length++;
+                }
+                writeInsert(out, target, insertStart, t);
+                out.write(COPY);
+                writeVarint(out, s);
+                writeVarint(out, length);
+                i = t + length;
+                insertStart = i;
+                if (i + BLOCK <= target.length) {
+                    hash = hash(target, i);
+                }
+            } else {
+                if (i + BLOCK < target.length) {
+                    hash = (hash - target[i] * PRIME_POW) * PRIME + target[i + BLOCK];
+                }
+                i++;
+            }
+            if (out.size() + (i - insertStart) > limit) {
+                return null;
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.size() > limit ? null : out.toByteArray();
+    }
+
+    /**
+     * Returns the target that DELTA rebuilds from BASE.
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw error("Delta does not apply to its base.");
+        }
+        byte[] target = new byte[readVarint(delta, pos)];
+        int t = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, target, t, length);
+                t += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, t, length);
+                pos[0] += length;
+                t += length;
+            } else {
+                throw error("Corrupt delta.");
+            }
+        }
+        if (t != target.length) {
+            throw error("Corrupt delta.");
+        }
+        return target;
+    }
+
+    /**
+     * Returns a hash table of the blocks of BASE at block boundaries: hash -> offset + 1,
+     * keeping the first block of equal hashes.
+     */
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int[] table = new int[Integer.highestOneBit(Math.max(blocks, 1) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int offset = (blocks - 1) * BLOCK; offset >= 0; offset -= BLOCK) {
+            table[hash(base, offset) & mask] = offset + 1;
+        }
+        return table;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * PRIME + bytes[i];
+        }
+        return hash;
+    }
+
+    private static int pow(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents a file of raw object IDs, each optionally followed by an int value, that is searched
+ * by ID and grows by appending. It backs the {@link CommitIndex} and the table from commit ID
+ * to position in the {@link CommitGraph}.
+ * <p>
+ * Layout: {@code magic | version | sorted count}, a fanout table of 256 cumulative counts
+ * as in a pack index, the sorted entries {@code id (20 bytes) [| value]}, then a tail of entries
+ * appended since, in no particular order. Once the tail grows past {@link #MAX_TAIL} entries
+ * the whole file is rewritten sorted, so a lookup costs one binary search plus a scan of at most
+ * {@code MAX_TAIL} entries. A partial entry left by an interrupted append is ignored, and cut off
+ * by the next append.
+ *
+ * @author huang.kai
+ */
+class IdTable {
+    private static final int ID_SIZE = UID_LENGTH / 2;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * Integer.BYTES;
+
+    /**
+     * Largest number of unsorted entries kept before the table is rewritten.
+     */
+    private static final int MAX_TAIL = 512;
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private final int entrySize;
+
+    /**
+     * Mapping of the file, created on first use, or an empty buffer if there is no valid file.
+     */
+    private ByteBuffer table;
+
+    private int sortedCount;
+    private int tailCount;
+
+    /**
+     * A table kept in FILE, whose header holds MAGIC and VERSION, and whose entries
+     * carry an int value each if WITHVALUES.
+     */
+    IdTable(File file, int magic, int version, boolean withValues) {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        this.entrySize = ID_SIZE + (withValues ? Integer.BYTES : 0);
+    }
+
+    /**
+     * Forgets the mapping of the file, so that the next use reads what other processes wrote since.
+     */
+    void reload() {
+        table = null;
+    }
+
+    /**
+     * Returns whether the file exists and has a valid header.
+     */
+    boolean isValid() {
+        return table().limit() > 0;
+    }
+
+    /**
+     * Returns the number of entries, sorted or not.
+     */
+    int size() {
+        table();
+        return sortedCount + tailCount;
+    }
+
+    int sortedCount() {
+        table();
+        return sortedCount;
+    }
+
+    byte[] id(int entry) {
+        byte[] id = new byte[ID_SIZE];
+        table().get(entryOffset(entry), id);
+        return id;
+    }
+
+    int value(int entry) {
+        return table().getInt(entryOffset(entry) + ID_SIZE);
+    }
+
+    /**
+     * Returns the entry holding the raw ID KEY, or -1 if there is none.
+     */
+    int find(byte[] key) {
+        ByteBuffer buf = table();
+        int lo = lowerBound(key);
+        if (lo < sortedCount && PackFile.compare(buf, entryOffset(lo), key) == 0) {
+            return lo;
+        }
+        for (int i = sortedCount + tailCount - 1; i >= sortedCount; i--) {
+            if (PackFile.compare(buf, entryOffset(i), key) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first sorted entry whose ID is not below KEY, or the sorted count if there is none.
+     * The fanout table bounds the search to IDs with the same first byte.
+     */
+    int lowerBound(byte[] key) {
+        ByteBuffer buf = table();
+        if (sortedCount == 0) {
+            return 0;
+        }
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : buf.getInt(HEADER_SIZE + (first - 1) * Integer.BYTES);
+        int hi = buf.getInt(HEADER_SIZE + first * Integer.BYTES);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (PackFile.compare(buf, entryOffset(mid), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Appends entries for the raw IDS, with the given VALUES if entries carry values, rewriting
+     * the table sorted if the tail grows too long or there is no valid table to append to.
+     */
+    void append(List<byte[]> ids, int[] values) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        int first = size();
+        if (!isValid() || tailCount + ids.size() > MAX_TAIL) {
+            List<byte[]> allIDs = new ArrayList<>(first + ids.size());
+            int[] allValues = values == null ? null : new int[first + ids.size()];
+            for (int i = 0; i < first; i++) {
+                allIDs.add(id(i));
+                if (allValues != null) {
+                    allValues[i] = value(i);
+                }
+            }
+            allIDs.addAll(ids);
+            if (allValues != null) {
+                System.arraycopy(values, 0, allValues, first, values.length);
+            }
+            write(allIDs, allValues);
+            return;
+        }
+        ByteBuffer entries = ByteBuffer.allocate(ids.size() * entrySize);
+        for (int i = 0; i < ids.size(); i++) {
+            entries.put(ids.get(i));
+            if (values != null) {
+                entries.putInt(values[i]);
+            }
+        }
+        entries.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            long end = entryOffset(first);
+            channel.truncate(end);
+            while (entries.hasRemaining()) {
+                end += channel.write(entries, end);
+            }
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        table = null;
+    }
+
+    /**
+     * Replaces the table with entries for the distinct raw IDS, with the given VALUES
+     * if entries carry values.
+     */
+    void write(List<byte[]> ids, int[] values) {
+        List<Integer> order = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(ids::get, PackFile::compareIds));
+        int[] fanout = new int[256];
+        for (byte[] id : ids) {
+            fanout[id[0] & 0xff]++;
+        }
+        try {
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), "tmp-", null);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(magic);
+                out.writeInt(version);
+                out.writeInt(ids.size());
+                for (int i = 0, total = 0; i < fanout.length; i++) {
+                    total += fanout[i];
+                    out.writeInt(total);
+                }
+                for (int i : order) {
+                    out.write(ids.get(i));
+                    if (values != null) {
+                        out.writeInt(values[i]);
+                    }
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        table = null;
+    }
+
+    private ByteBuffer table() {
+        if (table == null) {
+            table = ByteBuffer.allocate(0);
+            sortedCount = 0;
+            tailCount = 0;
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buf.limit() >= HEADER_SIZE + FANOUT_SIZE
+                        && buf.getInt(0) == magic && buf.getInt(4) == version) {
+                    int entries = (buf.limit() - HEADER_SIZE - FANOUT_SIZE) / entrySize;
+                    if (buf.getInt(8) <= entries) {
+                        sortedCount = buf.getInt(8);
+                        tailCount = entries - sortedCount;
+                        table = buf;
+                    }
+                }
+            } catch (NoSuchFileException excp) {
+                // No table yet: it is empty until written.
+            } catch (IOException excp) {
+                throw error("Failed to read %s: %s", file, excp.getMessage());
+            }
+        }
+        return table;
+    }
+
+    private int entryOffset(int entry) {
+        return HEADER_SIZE + FANOUT_SIZE + entry * entrySize;
+    }
+}
@@ -0,0 +1,59 @@
+package gitlet;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Transport} to a remote that is another .gitlet directory on this machine.
+ * Packs are written straight into the pack directory of the receiving repository.
+ *
+ * @author huang.kai
+ */
+class LocalTransport implements Transport {
+    private final File localGitletDir;
+    private final File remoteGitletDir;
+
+    LocalTransport(File localGitletDir, File remoteGitletDir) {
+        this.localGitletDir = localGitletDir;
+        this.remoteGitletDir = remoteGitletDir;
+    }
+
+    @Override
+    public Map<String, String> branches() {
+        return Repository.readBranches(remoteGitletDir);
+    }
+
+    @Override
+    public void fetch(String want) {
+        send(remoteGitletDir, localGitletDir, want);
+    }
+
+    @Override
+    public void push(String branch, String oldHead, String head) {
+        send(localGitletDir, remoteGitletDir, head);
+        CommitGraph.open(remoteGitletDir).update(head);
+        Repository.writeBranchHead(remoteGitletDir, branch, head);
+    }
+
+    /**
+     * Forgets the opened store and commit-graph of the remote, which other processes may change
+     * before the next command, e.g. in a {@link Server} that outlives this one.
+     */
+    @Override
+    public void close() {
+        ObjectStore.evict(remoteGitletDir);
+        CommitGraph.evict(remoteGitletDir);
+    }
+
+    /**
+     * Sends the commit WANT, with every ancestor, tree and blob of it that the repository TO
+     * lacks, from the repository FROM as a single pack. FROM's commit graph works out the missing
+     * commits from the branch heads of TO alone.
+     */
+    private static void send(File fromGitletDir, File toGitletDir, String want) {
+        List<String> missing = CommitGraph.open(fromGitletDir).missing(want,
+                Repository.readBranches(toGitletDir).values());
+        ObjectStore.open(fromGitletDir).sendPack(ObjectStore.open(toGitletDir), missing);
+    }
+}
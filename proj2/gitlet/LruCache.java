@@ -0,0 +1,71 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A map that keeps its most recently used entries while their total weight fits a capacity,
+ * evicting the least recently used ones first. Values heavier than the whole capacity
+ * are not cached at all. It counts how many lookups found their key and how many did not.
+ * It is safe to use from several threads.
+ *
+ * @author huang.kai
+ */
+class LruCache<K, V> {
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+
+    /**
+     * Entries in access order, least recently used first.
+     */
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+    private long hits;
+    private long misses;
+
+    LruCache(long capacity, ToLongFunction<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the value cached for KEY, marking it as the most recently used, or null.
+     */
+    synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized void put(K key, V value) {
+        long w = weigher.applyAsLong(value);
+        if (w > capacity) {
+            return;
+        }
+        V old = entries.put(key, value);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += w;
+        var iter = entries.entrySet().iterator();
+        while (weight > capacity && iter.hasNext()) {
+            Map.Entry<K, V> eldest = iter.next();
+            weight -= weigher.applyAsLong(eldest.getValue());
+            iter.remove();
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package gitlet;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
 import static gitlet.Utils.abort;
 
 /**
@@ -8,12 +14,41 @@ import static gitlet.Utils.abort;
  * @author huang.kai
  */
 public class Main {
+    /**
+     * Whether the command was run with {@code --cache-stats}.
+     */
+    private static boolean cacheStats;
 
     /**
      * Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (Abort excp) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Runs one command, throwing an {@link Abort} if it stops with a message.
+     * A {@link Server} calls it once per client.
+     */
+    static void run(String[] args) {
+        Repository.setJobs(Repository.DEFAULT_JOBS);
+        cacheStats = false;
+        args = parseOptions(args);
+        try {
+            runCommand(args);
+        } finally {
+            if (cacheStats) {
+                Repository.printCacheStats();
+            }
+        }
+    }
+
+    private static void runCommand(String[] args) {
         if (args.length == 0) {
             abort("Please enter a command.");
         }
@@ -29,16 +64,23 @@ public class Main {
 
         switch (cmd) {
             case "add": {
-                validArgs(args, 2);
-                String filename = args[1];
-                Repository.add(filename);
+                if (args.length < 2) {
+                    abort("Incorrect operands.");
+                }
+                if (args[1].equals("-A")) {
+                    validArgs(args, 2);
+                    Repository.addAll();
+                } else {
+                    Repository.add(Arrays.asList(args).subList(1, args.length));
+                }
                 break;
             }
 
             case "rm": {
-                validArgs(args, 2);
-                String filename = args[1];
-                Repository.rm(filename);
+                if (args.length < 2) {
+                    abort("Incorrect operands.");
+                }
+                Repository.rm(Arrays.asList(args).subList(1, args.length));
                 break;
             }
 
@@ -72,24 +114,34 @@ public class Main {
             }
 
             case "log": {
-                validArgs(args, 1);
-                Repository.log();
+                LogOptions options = LogOptions.parse(args);
+                Repository.log(options.limit, options.since, options.path);
                 break;
             }
 
             case "global-log": {
-                validArgs(args, 1);
-                Repository.globalLog();
+                LogOptions options = LogOptions.parse(args);
+                if (options.path != null) {
+                    abort("Incorrect operands.");
+                }
+                Repository.globalLog(options.limit, options.since);
                 break;
             }
 
             case "find": {
-                validArgs(args, 2);
-                String message = args[1];
+                validArgs(args, 2, 3);
+                if (args.length == 3 && !args[1].equals("--contains")) {
+                    abort("Incorrect operands.");
+                }
+                String message = args[args.length - 1];
                 if (message == null || message.isEmpty()) {
                     abort("Please enter a commit message.");
                 }
-                Repository.find(message);
+                if (args.length == 3) {
+                    Repository.findContaining(message);
+                } else {
+                    Repository.find(message);
+                }
                 break;
             }
 
@@ -136,6 +188,12 @@ public class Main {
                 break;
             }
 
+            case "gc": {
+                validArgs(args, 1);
+                Repository.gc();
+                break;
+            }
+
             case "add-remote": {
                 validArgs(args, 3);
                 String remoteName = args[1];
@@ -175,11 +233,157 @@ public class Main {
                 break;
             }
 
+            case "server": {
+                validArgs(args, 1);
+                Repository.server();
+                break;
+            }
+
+            case "daemon": {
+                DaemonOptions options = DaemonOptions.parse(args);
+                Repository.daemon(options.host, options.port, options.allowPush);
+                break;
+            }
+
             default:
                 abort("No command with that name exists.");
         }
     }
 
+    /**
+     * Applies the global options that come before the command and returns the remaining arguments.
+     * <p>
+     * {@code --jobs N} sets the number of threads used to hash working files, and
+     * {@code --cache-stats} prints the hits and misses of the object caches once the command is done.
+     */
+    private static String[] parseOptions(String[] args) {
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            if (args[i].equals("--jobs") && i + 1 < args.length) {
+                Repository.setJobs(parseJobs(args[i + 1]));
+                i += 2;
+            } else if (args[i].startsWith("--jobs=")) {
+                Repository.setJobs(parseJobs(args[i].substring("--jobs=".length())));
+                i += 1;
+            } else if (args[i].equals("--cache-stats")) {
+                cacheStats = true;
+                i += 1;
+            } else {
+                abort("Incorrect operands.");
+            }
+        }
+        return Arrays.copyOfRange(args, i, args.length);
+    }
+
+    private static int parseJobs(String value) {
+        try {
+            int jobs = Integer.parseInt(value);
+            if (jobs > 0) {
+                return jobs;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below.
+        }
+        abort("Incorrect operands.");
+        return 1;
+    }
+
+    /**
+     * The options of {@code log} and {@code global-log}: {@code -n <count>} shows at most
+     * that many commits, and {@code --since <date>} only those made at or after the date,
+     * given as {@code yyyy-MM-dd} or {@code yyyy-MM-ddTHH:mm[:ss]} in local time.
+     * For {@code log} only, a final {@code -- <file>} shows only the commits that changed the file.
+     */
+    private static class LogOptions {
+        private int limit = Integer.MAX_VALUE;
+        private long since = Long.MIN_VALUE;
+        private String path;
+
+        static LogOptions parse(String[] args) {
+            LogOptions options = new LogOptions();
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    abort("Incorrect operands.");
+                }
+                if (args[i].equals("-n")) {
+                    options.limit = parseCount(args[i + 1]);
+                } else if (args[i].equals("--since")) {
+                    options.since = parseDate(args[i + 1]);
+                } else if (args[i].equals("--") && i + 2 == args.length) {
+                    options.path = args[i + 1];
+                } else {
+                    abort("Incorrect operands.");
+                }
+            }
+            return options;
+        }
+
+        private static int parseCount(String value) {
+            try {
+                int count = Integer.parseInt(value);
+                if (count >= 0) {
+                    return count;
+                }
+            } catch (NumberFormatException ignored) {
+                // Reported below.
+            }
+            abort("Incorrect operands.");
+            return 0;
+        }
+
+        private static long parseDate(String value) {
+            try {
+                LocalDateTime time = value.contains("T")
+                        ? LocalDateTime.parse(value)
+                        : LocalDate.parse(value).atStartOfDay();
+                return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException excp) {
+                abort("Incorrect operands.");
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * The options of {@code daemon}: {@code --listen <host>} is the address to listen on,
+     * the loopback address by default, {@code --port <port>} the port, 0 for any free one,
+     * and {@code --allow-push} lets clients push.
+     */
+    private static class DaemonOptions {
+        private String host = "127.0.0.1";
+        private int port = Daemon.DEFAULT_PORT;
+        private boolean allowPush;
+
+        static DaemonOptions parse(String[] args) {
+            DaemonOptions options = new DaemonOptions();
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("--allow-push")) {
+                    options.allowPush = true;
+                } else if (args[i].equals("--listen") && i + 1 < args.length) {
+                    options.host = args[++i];
+                } else if (args[i].equals("--port") && i + 1 < args.length) {
+                    options.port = parsePort(args[++i]);
+                } else {
+                    abort("Incorrect operands.");
+                }
+            }
+            return options;
+        }
+
+        private static int parsePort(String value) {
+            try {
+                int port = Integer.parseInt(value);
+                if (port >= 0 && port <= 0xffff) {
+                    return port;
+                }
+            } catch (NumberFormatException ignored) {
+                // Reported below.
+            }
+            abort("Incorrect operands.");
+            return 0;
+        }
+    }
+
     private static void validArgs(String[] args, int... validLengths) {
         for (int validLength : validLengths) {
             if (args.length == validLength) {
@@ -0,0 +1,251 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the inverted index of commit messages, kept in {@code objects/messages}.
+ * <p>
+ * Every commit gets one entry for its whole message and one for each distinct word in it.
+ * An entry is a 64-bit key, the start of the SHA-1 of the message or word, followed by
+ * the commit ID, so {@code find} looks up a message with one binary search instead of
+ * reading every commit. Keys may collide, so callers check the commits they get back.
+ * <p>
+ * Layout: {@code "MIDX" | version | sorted count}, the entries sorted by key and then by ID,
+ * then a tail of entries appended since, in no particular order. Once the tail grows past
+ * {@link #MAX_TAIL} entries the whole file is rewritten sorted, as for {@link CommitIndex}.
+ *
+ * @author huang.kai
+ */
+class MessageIndex {
+    private static final int MAGIC = 0x4d494458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ID_SIZE = UID_LENGTH / 2;
+    private static final int ENTRY_SIZE = Long.BYTES + ID_SIZE;
+
+    /**
+     * Largest number of unsorted entries kept before the index is rewritten.
+     */
+    private static final int MAX_TAIL = 1024;
+
+    private static final Comparator<Entry> ORDER = Comparator.<Entry, Long>comparing(e -> e.key,
+            Long::compareUnsigned).thenComparing(e -> e.commitID);
+
+    private final File file;
+
+    /**
+     * Mapping of the file, created on first lookup.
+     */
+    private ByteBuffer index;
+
+    private int sortedCount;
+    private int tailCount;
+
+    MessageIndex(File file) {
+        this.file = file;
+    }
+
+    boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Returns the words of MESSAGE, lower-cased, in order of first appearance.
+     */
+    static Set<String> words(String message) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Returns the sorted IDs of the commits whose message may be MESSAGE.
+     */
+    Set<String> withMessage(String message) {
+        return lookup(messageKey(message));
+    }
+
+    /**
+     * Returns the sorted IDs of the commits whose message may contain WORD, which must be
+     * one of the {@link #words(String)} of some text.
+     */
+    Set<String> withWord(String word) {
+        return lookup(wordKey(word));
+    }
+
+    /**
+     * Appends the entries of a new commit, rewriting the index sorted once the tail is too long.
+     */
+    void add(String commitID, String message) {
+        List<Entry> entries = entries(commitID, message);
+        index();
+        if (tailCount + entries.size() > MAX_TAIL) {
+            for (int i = 0; i < sortedCount + tailCount; i++) {
+                entries.add(readEntry(index, entryOffset(i)));
+            }
+            write(entries);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            // Cuts off a partial entry left by an interrupted append, so that the new ones stay aligned.
+            channel.truncate(entryOffset(sortedCount + tailCount));
+            for (Entry entry : entries) {
+                entry.write(out);
+            }
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        index = null;
+    }
+
+    /**
+     * Replaces the index with the entries of MESSAGES (commit ID -> message).
+     */
+    void write(Map<String, String> messages) {
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, String> e : messages.entrySet()) {
+            entries.addAll(entries(e.getKey(), e.getValue()));
+        }
+        write(entries);
+    }
+
+    private void write(List<Entry> entries) {
+        TreeSet<Entry> sorted = new TreeSet<>(ORDER);
+        sorted.addAll(entries);
+        try {
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), "tmp-", null);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                for (Entry entry : sorted) {
+                    entry.write(out);
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        index = null;
+    }
+
+    /**
+     * Returns the IDs of every entry with KEY: a binary search of the sorted entries
+     * for the first one not below it, then a scan of the tail.
+     */
+    private Set<String> lookup(long key) {
+        ByteBuffer idx = index();
+        Set<String> ids = new TreeSet<>();
+        int lo = 0;
+        int hi = sortedCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(idx.getLong(entryOffset(mid)), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < sortedCount && idx.getLong(entryOffset(i)) == key; i++) {
+            ids.add(readEntry(idx, entryOffset(i)).commitID);
+        }
+        for (int i = sortedCount; i < sortedCount + tailCount; i++) {
+            if (idx.getLong(entryOffset(i)) == key) {
+                ids.add(readEntry(idx, entryOffset(i)).commitID);
+            }
+        }
+        return ids;
+    }
+
+    private ByteBuffer index() {
+        if (index == null) {
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                ByteBuffer idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (idx.limit() < HEADER_SIZE || idx.getInt(0) != MAGIC || idx.getInt(4) != VERSION) {
+                    throw error("Corrupt message index %s", file);
+                }
+                sortedCount = idx.getInt(8);
+                // A partial entry left by an interrupted append is ignored, and cut off by the next one.
+                tailCount = (idx.limit() - HEADER_SIZE) / ENTRY_SIZE - sortedCount;
+                index = idx;
+            } catch (IOException excp) {
+                throw error("Failed to read %s: %s", file, excp.getMessage());
+            }
+        }
+        return index;
+    }
+
+    private static List<Entry> entries(String commitID, String message) {
+        List<Entry> entries = new ArrayList<>();
+        entries.add(new Entry(messageKey(message), commitID));
+        for (String word : words(message)) {
+            entries.add(new Entry(wordKey(word), commitID));
+        }
+        return entries;
+    }
+
+    private static long messageKey(String message) {
+        return key("message", message);
+    }
+
+    private static long wordKey(String word) {
+        return key("word", word);
+    }
+
+    private static long key(String kind, String text) {
+        return Long.parseUnsignedLong(sha1(kind, "\0", text).substring(0, 2 * Long.BYTES), 16);
+    }
+
+    private static int entryOffset(int pos) {
+        return HEADER_SIZE + pos * ENTRY_SIZE;
+    }
+
+    private static Entry readEntry(ByteBuffer buf, int offset) {
+        byte[] id = new byte[ID_SIZE];
+        buf.get(offset + Long.BYTES, id);
+        return new Entry(buf.getLong(offset), PackFile.toHex(id));
+    }
+
+    private static class Entry {
+        private final long key;
+        private final String commitID;
+
+        Entry(long key, String commitID) {
+            this.key = key;
+            this.commitID = commitID;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(key);
+            out.write(PackFile.toBytes(commitID));
+        }
+    }
+}
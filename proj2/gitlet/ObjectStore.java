@@ -0,0 +1,1554 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the object database of one .gitlet directory.
+ * <p>
+ * Commits, trees and blobs are first written as loose files, one file per object,
+ * under {@code objects/commits}, {@code objects/trees} and {@code objects/commits/blobs}.
+ * {@link #repack()} folds them into a single packfile under {@code objects/pack},
+ * and every read looks at the packs first and then at the loose files,
+ * so callers never need to know where an object lives.
+ * <p>
+ * Blobs are stored as {@link #BLOB_MAGIC} followed by the deflate-compressed content,
+ * and are compressed and decompressed as streams so that no file has to fit in memory.
+ * Blobs written before format version 1 are Java-serialized {@link Blob}s;
+ * readers tell the two apart by their first bytes.
+ * <p>
+ * {@link #repack()} stores blobs as {@link Delta}s against similar blobs where that is smaller;
+ * reads rebuild them transparently, with recently rebuilt blobs kept in an LRU cache.
+ * <p>
+ * Commits and trees are written in the binary form of {@link Codec}. Those written before
+ * format version 2 are Java-serialized and are still read, and copied to other stores as they are.
+ * <p>
+ * Files of at least {@link Config#CHUNK_THRESHOLD} bytes are cut into content-defined chunks
+ * by {@link Chunker}, stored once each under {@code objects/chunks}, and the blob is stored
+ * as the {@link ChunkedBlob} list of its chunks. Chunks are compressed and written, and read
+ * back into the working file, on several threads.
+ *
+ * @author huang.kai
+ */
+class ObjectStore {
+    /**
+     * The newest repository format version this code reads and writes.
+     */
+    static final int FORMAT_VERSION = 4;
+
+    /**
+     * Header of a compressed blob, loose or packed.
+     */
+    private static final byte[] BLOB_MAGIC = {'G', 'B', 'L', 'Z'};
+
+    /**
+     * Hashed before the content of a chunk to get its ID.
+     */
+    private static final byte[] CHUNK_ID_PREFIX = {'c', 'h', 'u', 'n', 'k', 0};
+
+    /**
+     * Largest blob that {@link #repack()} stores as a delta. Bigger blobs are always
+     * stored whole, so that they can be streamed.
+     */
+    private static final int MAX_DELTA_SIZE = 8 << 20;
+
+    /**
+     * Smallest blob worth storing as a delta.
+     */
+    private static final int MIN_DELTA_SIZE = 64;
+
+    /**
+     * Number of preceding blobs that {@link #repack()} tries as the delta base of each blob.
+     */
+    private static final int DELTA_WINDOW = 10;
+
+    /**
+     * Longest chain of deltas {@link #repack()} creates, so that reading a blob
+     * never applies more deltas than this.
+     */
+    private static final int MAX_DELTA_DEPTH = 10;
+
+    /**
+     * Total size of the rebuilt blobs kept to resolve delta chains.
+     */
+    private static final long DELTA_CACHE_SIZE = 32 << 20;
+
+    /**
+     * Rough memory kept for decoded commits, for trees, and for small blobs.
+     */
+    private static final long COMMIT_CACHE_SIZE = 16 << 20;
+    private static final long TREE_CACHE_SIZE = 16 << 20;
+    private static final long BLOB_CACHE_SIZE = 16 << 20;
+
+    /**
+     * Largest blob kept whole in the blob cache.
+     */
+    private static final int MAX_CACHED_BLOB = 64 << 10;
+
+    /**
+     * Opened stores, keyed by their absolute .gitlet directory.
+     */
+    private static final Map<File, ObjectStore> STORES = new HashMap<>();
+
+    private final File gitletDir;
+    private final File commitDir;
+    private final File treeDir;
+    private final File blobDir;
+    private final File chunkDir;
+    private final File packDir;
+
+    /**
+     * Sorted index of every commit ID, for resolving abbreviated IDs.
+     */
+    private final CommitIndex commitIndex;
+
+    /**
+     * Index of commit messages and their words, for {@code find}.
+     */
+    private final MessageIndex messageIndex;
+
+    /**
+     * Format version of this store, checked when the store is opened.
+     */
+    private int formatVersion;
+
+    /**
+     * Size from which files are stored as chunks, or 0 to never chunk them.
+     */
+    private final long chunkThreshold;
+
+    /**
+     * Packs of this store, loaded on first use.
+     */
+    private List<PackFile> packs;
+
+    /**
+     * Recently rebuilt delta blobs and their bases: blob ID -> content.
+     */
+    private final LruCache<String, byte[]> deltaBases = new LruCache<>(DELTA_CACHE_SIZE, bytes -> bytes.length);
+
+    /**
+     * Recently read objects, by ID. Commits and trees never change once stored,
+     * so the decoded ones are shared by every reader.
+     */
+    private final LruCache<String, Commit> commitCache = new LruCache<>(COMMIT_CACHE_SIZE, Commit::weight);
+    private final LruCache<String, Tree> treeCache = new LruCache<>(TREE_CACHE_SIZE, Tree::weight);
+    private final LruCache<String, byte[]> blobCache = new LruCache<>(BLOB_CACHE_SIZE, bytes -> bytes.length);
+
+    private ObjectStore(File gitletDir) {
+        File objectsDir = join(gitletDir, "objects");
+        this.gitletDir = gitletDir;
+        this.commitDir = join(objectsDir, "commits");
+        this.treeDir = join(objectsDir, "trees");
+        this.blobDir = join(commitDir, "blobs");
+        this.chunkDir = join(objectsDir, "chunks");
+        this.packDir = join(objectsDir, "pack");
+        this.commitIndex = new CommitIndex(join(objectsDir, "commit-ids"));
+        this.messageIndex = new MessageIndex(join(objectsDir, "messages"));
+        Config config = Config.read(gitletDir);
+        this.formatVersion = config.getInt(Config.FORMAT_VERSION, 0);
+        this.chunkThreshold = config.getInt(Config.CHUNK_THRESHOLD, 0);
+        if (formatVersion > FORMAT_VERSION) {
+            throw error("Unsupported repository format version %d.", formatVersion);
+        }
+    }
+
+    /**
+     * Returns the object store of the given .gitlet directory.
+     */
+    static ObjectStore open(File gitletDir) {
+        return STORES.computeIfAbsent(gitletDir.getAbsoluteFile(), ObjectStore::new);
+    }
+
+    /**
+     * Forgets the opened store of the given .gitlet directory, so that the next {@link #open}
+     * sees what other processes changed since, such as packs written by {@code gc}.
+     */
+    static void evict(File gitletDir) {
+        STORES.remove(gitletDir.getAbsoluteFile());
+    }
+
+    /**
+     * Records the current format version in a newly created .gitlet directory.
+     */
+    static void initFormat(File gitletDir) {
+        Config config = Config.read(gitletDir);
+        config.set(Config.FORMAT_VERSION, Integer.toString(FORMAT_VERSION));
+        config.save();
+    }
+
+    /**
+     * Returns the commit with the given full ID, or null if there is none.
+     */
+    Commit readCommit(String commitID) {
+        Commit commit = commitCache.get(commitID);
+        if (commit == null) {
+            ByteBuffer stored = readStored(commitID, PackFile.COMMIT, commitDir);
+            if (stored == null) {
+                return null;
+            }
+            commit = Commit.decode(commitID, stored);
+            commitCache.put(commitID, commit);
+        }
+        return commit;
+    }
+
+    /**
+     * Returns the tree with the given ID, or null if there is none.
+     */
+    Tree readTree(String treeID) {
+        Tree tree = treeCache.get(treeID);
+        if (tree == null) {
+            ByteBuffer stored = readStored(treeID, PackFile.TREE, treeDir);
+            if (stored == null) {
+                return null;
+            }
+            tree = Tree.decode(stored);
+            treeCache.put(treeID, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns a stream over the content of the blob with the given ID, or null if there is none.
+     * The content is decompressed as it is read, unless the blob is cached.
+     */
+    InputStream openBlob(String blobID) {
+        byte[] cached = blobCache.get(blobID);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        return openStoredBlob(blobID);
+    }
+
+    private InputStream openStoredBlob(String blobID) {
+        byte[] rebuilt = readDelta(blobID);
+        if (rebuilt != null) {
+            return new ByteArrayInputStream(rebuilt);
+        }
+        InputStream stored = openStoredForm(blobID);
+        return stored == null ? null : decodeBlob(stored);
+    }
+
+    /**
+     * Returns a stream over the stored form of the blob with the given ID, packed whole or loose,
+     * or null if it is stored neither way.
+     */
+    private InputStream openStoredForm(String blobID) {
+        InputStream stored = openPacked(blobID, PackFile.BLOB);
+        if (stored != null) {
+            return stored;
+        }
+        File blobFile = join(blobDir, blobID);
+        if (!blobFile.isFile()) {
+            return null;
+        }
+        try {
+            return new BufferedInputStream(Files.newInputStream(blobFile.toPath()));
+        } catch (IOException excp) {
+            throw error("Failed to read blob %s: %s", blobID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the whole content of the blob with the given ID, or null if there is none.
+     */
+    byte[] readBlob(String blobID) {
+        byte[] cached = blobCache.get(blobID);
+        if (cached != null) {
+            return cached.clone();
+        }
+        try (InputStream in = openStoredBlob(blobID)) {
+            if (in == null) {
+                return null;
+            }
+            byte[] content = in.readAllBytes();
+            if (content.length <= MAX_CACHED_BLOB) {
+                blobCache.put(blobID, content.clone());
+            }
+            return content;
+        } catch (IOException excp) {
+            throw error("Failed to read blob %s: %s", blobID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Writes the content of the blob with the given ID to TARGET, creating or overwriting it.
+     * The chunks of a chunked blob are read and written at their offsets in parallel.
+     * The stored blob is opened once: its header tells a chunk list from content to decode.
+     */
+    void restoreBlob(String blobID, File target) {
+        byte[] content = blobCache.get(blobID);
+        if (content == null) {
+            content = readDelta(blobID);
+        }
+        InputStream stored = content == null ? openStoredForm(blobID) : new ByteArrayInputStream(content);
+        if (stored == null) {
+            throw error("Missing blob %s", blobID);
+        }
+        try (PushbackInputStream in = new PushbackInputStream(stored, ChunkedBlob.MAGIC.length)) {
+            if (content == null) {
+                byte[] header = in.readNBytes(ChunkedBlob.MAGIC.length);
+                if (Arrays.equals(header, ChunkedBlob.MAGIC)) {
+                    restoreChunks(ChunkedBlob.read(in), target);
+                    return;
+                }
+                in.unread(header);
+            }
+            InputStream decoded = content == null ? decodeBlob(in) : in;
+            Files.copy(decoded, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("Failed to restore %s: %s", target, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns how often reads of commits, trees and blobs found them cached, one line each.
+     */
+    String cacheStats() {
+        return String.format("commits: %d hits, %d misses%ntrees: %d hits, %d misses%nblobs: %d hits, %d misses%n",
+                commitCache.hits(), commitCache.misses(), treeCache.hits(), treeCache.misses(),
+                blobCache.hits(), blobCache.misses());
+    }
+
+    boolean hasCommit(String commitID) {
+        return isPacked(commitID, PackFile.COMMIT) || join(commitDir, commitID).isFile();
+    }
+
+    boolean hasTree(String treeID) {
+        return isPacked(treeID, PackFile.TREE) || join(treeDir, treeID).isFile();
+    }
+
+    boolean hasBlob(String blobID) {
+        return isPacked(blobID, PackFile.BLOB) || join(blobDir, blobID).isFile();
+    }
+
+    boolean hasChunk(String chunkID) {
+        return isPacked(chunkID, PackFile.CHUNK) || join(chunkDir, chunkID).isFile();
+    }
+
+    /**
+     * Writes the commit as a loose object and adds it to the commit and message indexes.
+     */
+    void writeCommit(Commit commit) {
+        String commitID = commit.getCommitID();
+        boolean known = hasCommit(commitID);
+        writeContents(join(commitDir, commitID), (Object) commit.encode());
+        upgradeFormat();
+        if (!known) {
+            indexCommit(commitID, commit.getMessage());
+        }
+    }
+
+    /**
+     * Adds a new commit to the commit and message indexes. Until an index is first built,
+     * the listing it will be built from includes the commit.
+     */
+    private void indexCommit(String commitID, String message) {
+        if (commitIndex.exists()) {
+            commitIndex.add(commitID);
+        }
+        if (messageIndex.exists()) {
+            messageIndex.add(commitID, message);
+        }
+    }
+
+    /**
+     * Writes the tree as a loose object, unless it is already stored.
+     * Repositories created before trees existed get their tree directory here.
+     */
+    void writeTree(Tree tree) {
+        if (hasTree(tree.getTreeID())) {
+            return;
+        }
+        createDirectory(treeDir);
+        writeContents(join(treeDir, tree.getTreeID()), (Object) tree.encode());
+        upgradeFormat();
+    }
+
+    /**
+     * Writes the blob as a loose object, unless it is already stored.
+     */
+    void writeBlob(Blob blob) {
+        writeBlob(blob.getBlobID(), new ByteArrayInputStream(blob.getContent()));
+    }
+
+    /**
+     * Stores the content of SOURCE as a blob, unless it is already stored, and returns its ID.
+     * The file is hashed and compressed in a single pass over a fixed-size buffer,
+     * so memory use does not depend on the size of the file.
+     * Files of at least {@link #chunkThreshold} bytes are stored as chunks.
+     */
+    String writeBlob(File source) {
+        if (chunkThreshold > 0 && source.length() >= chunkThreshold) {
+            return writeChunked(source);
+        }
+        MessageDigest digest = Blob.newDigest();
+        File tmp;
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            tmp = compressToTemp(in, digest);
+        } catch (IOException excp) {
+            throw error("Failed to read %s: %s", source, excp.getMessage());
+        }
+
+        String blobID = PackFile.toHex(digest.digest());
+        try {
+            if (hasBlob(blobID)) {
+                Files.delete(tmp.toPath());
+            } else {
+                moveIntoPlace(tmp, join(blobDir, blobID));
+                upgradeFormat();
+            }
+        } catch (IOException excp) {
+            throw error("Failed to write blob %s: %s", blobID, excp.getMessage());
+        }
+        return blobID;
+    }
+
+    /**
+     * Stores the contents of SOURCES as blobs, as {@link #writeBlob(File)} does one, and returns
+     * their IDs in the same order. The files are hashed and compressed into temporary files on a
+     * pool of at most JOBS threads, each temporary file flushed to disk by its thread; they then
+     * move into the blob directory as one batch, made durable by a single sync of the directory.
+     */
+    List<String> writeBlobs(List<File> sources, int jobs) {
+        List<Callable<String[]>> tasks = new ArrayList<>(sources.size());
+        for (File source : sources) {
+            tasks.add(() -> {
+                if (chunkThreshold > 0 && source.length() >= chunkThreshold) {
+                    return new String[]{writeChunked(source), null};
+                }
+                MessageDigest digest = Blob.newDigest();
+                try (InputStream in = Files.newInputStream(source.toPath())) {
+                    File tmp = compressToTemp(in, digest);
+                    sync(tmp);
+                    return new String[]{PackFile.toHex(digest.digest()), tmp.getPath()};
+                } catch (IOException excp) {
+                    throw error("Failed to read %s: %s", source, excp.getMessage());
+                }
+            });
+        }
+
+        List<String> blobIDs = new ArrayList<>(sources.size());
+        boolean moved = false;
+        try {
+            for (String[] written : runAll(tasks, jobs)) {
+                String blobID = written[0];
+                blobIDs.add(blobID);
+                if (written[1] == null) {
+                    continue;
+                }
+                File tmp = new File(written[1]);
+                if (hasBlob(blobID)) {
+                    Files.delete(tmp.toPath());
+                } else {
+                    moveIntoPlace(tmp, join(blobDir, blobID));
+                    moved = true;
+                }
+            }
+            if (moved) {
+                sync(blobDir);
+                upgradeFormat();
+            }
+        } catch (IOException excp) {
+            throw error("Failed to write blobs: %s", excp.getMessage());
+        }
+        return blobIDs;
+    }
+
+    /**
+     * Flushes FILE, or the entries of a directory, to disk. Platforms that cannot sync
+     * a directory are left to make it durable in their own time.
+     */
+    private static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                file.isDirectory() ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw excp;
+            }
+        }
+    }
+
+    /**
+     * Stores the content of SOURCE as a chunk list, writing only the chunks not already stored,
+     * and returns the blob ID. This thread cuts the chunks and hashes the whole content
+     * while the new chunks are compressed and written in parallel.
+     */
+    private String writeChunked(File source) {
+        MessageDigest digest = Blob.newDigest();
+        List<String> chunkIDs = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        Set<String> submitted = new HashSet<>();
+        Pipeline writers = new Pipeline();
+        createDirectory(chunkDir);
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            Chunker chunker = new Chunker(in);
+            for (byte[] next = chunker.next(); next != null; next = chunker.next()) {
+                byte[] chunk = next;
+                digest.update(chunk);
+                String chunkID = chunkID(chunk);
+                chunkIDs.add(chunkID);
+                lengths.add(chunk.length);
+                if (submitted.add(chunkID) && !hasChunk(chunkID)) {
+                    writers.submit(() -> writeChunk(chunkID, chunk));
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Failed to read %s: %s", source, excp.getMessage());
+        } finally {
+            writers.finish();
+        }
+
+        String blobID = PackFile.toHex(digest.digest());
+        if (!hasBlob(blobID)) {
+            writeContents(join(blobDir, blobID), (Object) new ChunkedBlob(chunkIDs, lengths).encode());
+            upgradeFormat();
+        }
+        return blobID;
+    }
+
+    /**
+     * Returns the ID of a chunk: the SHA-1 of its content after a prefix, so that a chunk
+     * never has the ID of a blob with the same content and both can share a pack.
+     */
+    private static String chunkID(byte[] content) {
+        MessageDigest digest = Blob.newDigest();
+        digest.update(CHUNK_ID_PREFIX);
+        return PackFile.toHex(digest.digest(content));
+    }
+
+    private void writeChunk(String chunkID, byte[] content) {
+        try {
+            moveIntoPlace(compressToTemp(new ByteArrayInputStream(content), null), join(chunkDir, chunkID));
+        } catch (IOException excp) {
+            throw error("Failed to write chunk %s: %s", chunkID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the chunk list of the blob with the given ID, or null if it is not stored as chunks.
+     */
+    private ChunkedBlob readChunkList(String blobID) {
+        InputStream stored = openStoredForm(blobID);
+        if (stored == null) {
+            return null;
+        }
+        try (InputStream in = stored) {
+            byte[] header = in.readNBytes(ChunkedBlob.MAGIC.length);
+            return Arrays.equals(header, ChunkedBlob.MAGIC) ? ChunkedBlob.read(in) : null;
+        } catch (IOException excp) {
+            throw error("Failed to read blob %s: %s", blobID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the content of the chunk with the given ID.
+     */
+    private byte[] readChunk(String chunkID) {
+        ByteBuffer stored = readStoredOrFail(chunkID, PackFile.CHUNK, chunkDir);
+        int header = BLOB_MAGIC.length;
+        return inflate(stored.slice(header, stored.limit() - header));
+    }
+
+    /**
+     * Returns a stream over the content of a chunked blob, reading each chunk as it is reached.
+     */
+    private InputStream openChunks(ChunkedBlob chunked) {
+        Iterator<String> chunkIDs = chunked.getChunkIDs().iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunkIDs.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return new ByteArrayInputStream(readChunk(chunkIDs.next()));
+            }
+        });
+    }
+
+    /**
+     * Writes the content of a chunked blob to TARGET, each chunk read and written at its offset
+     * by its own task, with a bounded number of chunks in memory.
+     */
+    private void restoreChunks(ChunkedBlob chunked, File target) {
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Pipeline writers = new Pipeline();
+            List<String> chunkIDs = chunked.getChunkIDs();
+            long offset = 0;
+            try {
+                for (int i = 0; i < chunkIDs.size(); i++) {
+                    String chunkID = chunkIDs.get(i);
+                    long position = offset;
+                    writers.submit(() -> writeAt(out, readChunk(chunkID), position, target));
+                    offset += chunked.lengthOf(i);
+                }
+            } finally {
+                writers.finish();
+            }
+        } catch (IOException excp) {
+            throw error("Failed to restore %s: %s", target, excp.getMessage());
+        }
+    }
+
+    private static void writeAt(FileChannel out, byte[] content, long position, File target) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer, position + buffer.position());
+            }
+        } catch (IOException excp) {
+            throw error("Failed to restore %s: %s", target, excp.getMessage());
+        }
+    }
+
+    /**
+     * Writes the commits COMMITIDS into TARGET as a single new pack, as for {@link #writePack},
+     * sending only the chunks TARGET lacks. The pack becomes visible to TARGET at once, when it is complete.
+     */
+    void sendPack(ObjectStore target, List<String> commitIDs) {
+        PackFile pack = writePack(commitIDs, target.packDir, target::hasChunk);
+        if (pack != null) {
+            target.addPack(pack);
+        }
+    }
+
+    /**
+     * Writes the pack of the commits COMMITIDS to OUT, as for {@link #sendPack}, for
+     * {@link #receivePack} at the other end of a connection. The receiver's chunks are not known
+     * there, so every chunk of a sent blob is included. The pack is built in a temporary directory.
+     */
+    void streamPack(DataOutputStream out, List<String> commitIDs) throws IOException {
+        if (commitIDs.isEmpty()) {
+            out.writeBoolean(false);
+            return;
+        }
+        File tmpDir = Files.createTempDirectory(packDir.getParentFile().toPath(), "tmp-").toFile();
+        try {
+            PackFile pack = writePack(commitIDs, tmpDir, chunkID -> false);
+            out.writeBoolean(true);
+            pack.writeTo(out);
+        } finally {
+            deleteTempDirectory(tmpDir);
+        }
+    }
+
+    /**
+     * Reads a pack written by {@link #streamPack} from IN into this store, if one was sent,
+     * which must leave this store with the commit HEAD.
+     * <p>
+     * Nothing received is trusted. Every object is hashed to check its ID, no object may be
+     * Java-serialized, and the pack is written anew with an index built from the checked IDs.
+     * It only moves into the pack directory once it has all been checked and HEAD is known to be
+     * there; otherwise nothing of it is kept.
+     */
+    void receivePack(DataInputStream in, String head) throws IOException {
+        if (!in.readBoolean()) {
+            if (!hasCommit(head)) {
+                throw error("Missing commit %s", head);
+            }
+            return;
+        }
+        File tmpDir = Files.createTempDirectory(packDir.getParentFile().toPath(), "tmp-").toFile();
+        try {
+            PackFile received = PackFile.readFrom(in, join(tmpDir, "received.pack"));
+            PackFile pack = checkReceived(received.records(), tmpDir);
+            if (pack.typeOf(head) != PackFile.COMMIT && !hasCommit(head)) {
+                throw error("Missing commit %s", head);
+            }
+            createDirectory(packDir);
+            addPack(pack.moveTo(packDir));
+        } finally {
+            deleteTempDirectory(tmpDir);
+        }
+    }
+
+    /**
+     * Writes the RECORDS of a received pack as a new pack in DIR, each under the ID hashed from
+     * its content, and returns it. Chunks of a blob may be in the pack or already in this store.
+     */
+    private PackFile checkReceived(List<PackFile.Record> records, File dir) {
+        PackFile.Writer writer = new PackFile.Writer(dir);
+        try {
+            Map<String, ByteBuffer> chunks = new HashMap<>();
+            for (PackFile.Record record : records) {
+                if (record.type == PackFile.CHUNK) {
+                    String chunkID = chunkID(inflateReceived(record.payload));
+                    if (chunks.put(chunkID, record.payload) == null) {
+                        writer.add(chunkID, PackFile.CHUNK, record.payload.duplicate());
+                    }
+                }
+            }
+            Set<String> written = new HashSet<>();
+            for (PackFile.Record record : records) {
+                if (Codec.isSerialized(record.payload)) {
+                    throw error("Received pack holds a Java-serialized object");
+                }
+                ByteBuffer payload = record.payload;
+                String id;
+                switch (record.type) {
+                    case PackFile.COMMIT:
+                        id = Utils.sha1((Object) toArray(payload));
+                        Commit.decode(id, payload);
+                        break;
+                    case PackFile.TREE:
+                        id = Tree.decode(payload).getTreeID();
+                        break;
+                    case PackFile.BLOB:
+                        id = receivedBlobID(payload, chunks);
+                        break;
+                    case PackFile.CHUNK:
+                        continue;
+                    default:
+                        throw error("Corrupt pack received");
+                }
+                if (written.add(id)) {
+                    writer.add(id, record.type, payload.duplicate());
+                }
+            }
+            return writer.finish();
+        } catch (RuntimeException excp) {
+            writer.abort();
+            throw excp;
+        }
+    }
+
+    /**
+     * Returns the ID of a received blob, hashed from its content: the inflated content of a compressed
+     * blob, or that of the chunks in its chunk list, which must be in CHUNKS or in this store.
+     */
+    private String receivedBlobID(ByteBuffer stored, Map<String, ByteBuffer> chunks) {
+        MessageDigest digest = Blob.newDigest();
+        if (startsWith(stored, BLOB_MAGIC)) {
+            int header = BLOB_MAGIC.length;
+            ByteBuffer compressed = stored.slice(stored.position() + header, stored.remaining() - header);
+            try (InputStream in = new InflaterInputStream(new PackFile.BufferInputStream(compressed))) {
+                byte[] buffer = new byte[Blob.BUFFER_SIZE];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                }
+            } catch (IOException excp) {
+                throw error("Corrupt blob received: %s", excp.getMessage());
+            }
+        } else if (startsWith(stored, ChunkedBlob.MAGIC)) {
+            int header = ChunkedBlob.MAGIC.length;
+            ChunkedBlob chunked;
+            try (InputStream in = new PackFile.BufferInputStream(
+                    stored.slice(stored.position() + header, stored.remaining() - header))) {
+                chunked = ChunkedBlob.read(in);
+            } catch (IOException excp) {
+                throw error("Corrupt blob received: %s", excp.getMessage());
+            }
+            List<String> chunkIDs = chunked.getChunkIDs();
+            for (int i = 0; i < chunkIDs.size(); i++) {
+                String chunkID = chunkIDs.get(i);
+                ByteBuffer chunk = chunks.get(chunkID);
+                byte[] content = chunk != null ? inflateReceived(chunk) : hasChunk(chunkID) ? readChunk(chunkID) : null;
+                if (content == null || content.length != chunked.lengthOf(i)) {
+                    throw error("Corrupt blob received: bad chunk %s", chunkID);
+                }
+                digest.update(content);
+            }
+        } else {
+            throw error("Corrupt blob received");
+        }
+        return PackFile.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the content of a received chunk, stored as a compressed blob is,
+     * which is no larger than {@link Chunker#MAX_SIZE}.
+     */
+    private static byte[] inflateReceived(ByteBuffer stored) {
+        if (!startsWith(stored, BLOB_MAGIC)) {
+            throw error("Corrupt chunk received");
+        }
+        int header = BLOB_MAGIC.length;
+        ByteBuffer compressed = stored.slice(stored.position() + header, stored.remaining() - header);
+        try (InputStream in = new InflaterInputStream(new PackFile.BufferInputStream(compressed))) {
+            byte[] content = in.readNBytes(Chunker.MAX_SIZE + 1);
+            if (content.length > Chunker.MAX_SIZE) {
+                throw error("Corrupt chunk received");
+            }
+            return content;
+        } catch (IOException excp) {
+            throw error("Corrupt chunk received: %s", excp.getMessage());
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+        if (buf.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(buf.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deleteTempDirectory(File tmpDir) {
+        File[] files = tmpDir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            file.delete();
+        }
+        tmpDir.delete();
+    }
+
+    /**
+     * Reads past a pack written by {@link #streamPack}, keeping nothing of it.
+     */
+    static void skipPack(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            PackFile.skip(in);
+        }
+    }
+
+    /**
+     * Makes a pack just moved into the pack directory visible, and indexes its commits.
+     */
+    private void addPack(PackFile pack) {
+        reloadPacks();
+        for (String commitID : pack.ids(PackFile.COMMIT)) {
+            indexCommit(commitID, readExistingCommit(commitID).getMessage());
+        }
+        upgradeFormat();
+    }
+
+    /**
+     * Writes the commits COMMITIDS as a single new pack in PACKDIR, together with the trees, blobs
+     * and chunks they introduce, all in their stored form, and returns it, or null if there are no
+     * commits. Chunks for which HASCHUNK is true are left out.
+     * <p>
+     * Every other commit the receiver needs must already be in it with its whole snapshot, as after
+     * {@link CommitGraph#missing}. Only the objects a commit changed against its parents are
+     * then sent: any other object is that of a parent, which is either sent or in the receiver.
+     */
+    private PackFile writePack(List<String> commitIDs, File packDir, Predicate<String> hasChunk) {
+        if (commitIDs.isEmpty()) {
+            return null;
+        }
+        Map<String, Commit> commits = new HashMap<>();
+        Set<String> treeIDs = new LinkedHashSet<>();
+        Set<String> blobIDs = new LinkedHashSet<>();
+        for (String commitID : commitIDs) {
+            Commit commit = commits.computeIfAbsent(commitID, this::readExistingCommit);
+            List<Commit> parents = new ArrayList<>();
+            for (String parentID : new String[]{commit.getParent(), commit.getSecondParent()}) {
+                if (parentID != null) {
+                    parents.add(commits.computeIfAbsent(parentID, this::readExistingCommit));
+                }
+            }
+            if (commit.getTree() != null) {
+                List<String> parentTrees = new ArrayList<>();
+                for (Commit parent : parents) {
+                    if (parent.getTree() != null) {
+                        parentTrees.add(parent.getTree());
+                    }
+                }
+                collectChanged(commit.getTree(), parentTrees, treeIDs, blobIDs);
+            } else {
+                // Commits made before trees existed list every file in a flat blob map.
+                for (Map.Entry<String, String> entry : commit.getBlobs().entrySet()) {
+                    if (parents.stream().noneMatch(parent -> parent.getBlobs() != null
+                            && entry.getValue().equals(parent.getBlobs().get(entry.getKey())))) {
+                        blobIDs.add(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        PackFile.Writer writer = new PackFile.Writer(packDir);
+        for (String commitID : commitIDs) {
+            writer.add(commitID, PackFile.COMMIT, readStoredOrFail(commitID, PackFile.COMMIT, commitDir));
+        }
+        for (String treeID : treeIDs) {
+            writer.add(treeID, PackFile.TREE, readStoredOrFail(treeID, PackFile.TREE, treeDir));
+        }
+        Set<String> sentChunks = new HashSet<>();
+        for (String blobID : blobIDs) {
+            packBlob(writer, blobID, hasChunk, sentChunks);
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Adds to TREEIDS and BLOBIDS the tree TREEID and everything under it that differs from
+     * the entry with the same path in every one of the PARENTTREES. Subtrees equal to a parent's
+     * are not descended into, so the cost follows the size of the change.
+     */
+    private void collectChanged(String treeID, List<String> parentTrees, Set<String> treeIDs, Set<String> blobIDs) {
+        if (treeID.equals(Tree.EMPTY.getTreeID()) || parentTrees.contains(treeID) || !treeIDs.add(treeID)) {
+            return;
+        }
+        Tree tree = readExistingTree(treeID);
+        List<Tree> parents = new ArrayList<>();
+        for (String parentTree : parentTrees) {
+            parents.add(readExistingTree(parentTree));
+        }
+        for (Map.Entry<String, String> entry : tree.getTrees().entrySet()) {
+            List<String> parentSubtrees = new ArrayList<>();
+            for (Tree parent : parents) {
+                String subtree = parent.getTrees().get(entry.getKey());
+                if (subtree != null) {
+                    parentSubtrees.add(subtree);
+                }
+            }
+            collectChanged(entry.getValue(), parentSubtrees, treeIDs, blobIDs);
+        }
+        for (Map.Entry<String, String> entry : tree.getBlobs().entrySet()) {
+            if (parents.stream().noneMatch(parent -> entry.getValue().equals(parent.getBlobs().get(entry.getKey())))) {
+                blobIDs.add(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Appends a blob to a pack being sent. A blob packed as a delta is rebuilt and sent whole,
+     * as its base may not be sent; of a chunked blob, only the chunks not in HASCHUNK are sent.
+     */
+    private void packBlob(PackFile.Writer writer, String blobID, Predicate<String> hasChunk, Set<String> sentChunks) {
+        byte[] rebuilt = readDelta(blobID);
+        if (rebuilt != null) {
+            writer.add(blobID, PackFile.BLOB, compress(rebuilt));
+            return;
+        }
+        ChunkedBlob chunked = readChunkList(blobID);
+        if (chunked != null) {
+            for (String chunkID : chunked.getChunkIDs()) {
+                if (!hasChunk.test(chunkID) && sentChunks.add(chunkID)) {
+                    writer.add(chunkID, PackFile.CHUNK, readStoredOrFail(chunkID, PackFile.CHUNK, chunkDir));
+                }
+            }
+        }
+        copyStoredBlob(writer, blobID);
+    }
+
+    private Commit readExistingCommit(String commitID) {
+        Commit commit = readCommit(commitID);
+        if (commit == null) {
+            throw error("Missing commit %s", commitID);
+        }
+        return commit;
+    }
+
+    private Tree readExistingTree(String treeID) {
+        if (treeID.equals(Tree.EMPTY.getTreeID())) {
+            return Tree.EMPTY;
+        }
+        Tree tree = readTree(treeID);
+        if (tree == null) {
+            throw error("Missing tree %s", treeID);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the IDs of all commits, loose and packed, in sorted order.
+     */
+    List<String> commitIDs() {
+        TreeSet<String> ids = new TreeSet<>(looseIDs(commitDir));
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.ids(PackFile.COMMIT));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Returns the IDs of all commits, packed ones first, without listing or sorting them up front,
+     * so that a caller that stops early pays only for what it read. The stream must be closed.
+     */
+    Stream<String> streamCommitIDs() {
+        Stream<String> packed = packs().stream().flatMap(pack -> pack.streamIDs(PackFile.COMMIT));
+        Stream<String> loose;
+        try {
+            // A loose commit that is also packed was left behind by an interrupted gc.
+            loose = Files.list(commitDir.toPath())
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> PackFile.toBytes(name) != null && !isPacked(name, PackFile.COMMIT));
+        } catch (IOException excp) {
+            throw error("Failed to list %s: %s", commitDir, excp.getMessage());
+        }
+        return Stream.concat(packed, loose);
+    }
+
+    /**
+     * Returns up to LIMIT IDs of the commits whose ID starts with PREFIX, in sorted order.
+     * The commit index is searched, and built from {@link #commitIDs()} if the store has none yet.
+     */
+    List<String> findCommits(String prefix, int limit) {
+        if (!commitIndex.exists()) {
+            commitIndex.write(commitIDs());
+        }
+        return commitIndex.match(prefix, limit);
+    }
+
+    /**
+     * Returns the sorted IDs of the commits whose message is exactly MESSAGE.
+     */
+    List<String> findCommitsByMessage(String message) {
+        List<String> matches = new ArrayList<>();
+        for (String commitID : messageIndex().withMessage(message)) {
+            if (readCommit(commitID).getMessage().equals(message)) {
+                matches.add(commitID);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the sorted IDs of the commits whose message contains every one of the WORDS,
+     * as split by {@link MessageIndex#words(String)}.
+     */
+    List<String> findCommitsByWords(Set<String> words) {
+        Set<String> candidates = null;
+        for (String word : words) {
+            Set<String> ids = messageIndex().withWord(word);
+            if (candidates == null) {
+                candidates = ids;
+            } else {
+                candidates.retainAll(ids);
+            }
+        }
+        List<String> matches = new ArrayList<>();
+        for (String commitID : candidates != null ? candidates : Set.<String>of()) {
+            if (MessageIndex.words(readCommit(commitID).getMessage()).containsAll(words)) {
+                matches.add(commitID);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the message index, building it from every commit if the store has none yet.
+     */
+    private MessageIndex messageIndex() {
+        if (!messageIndex.exists()) {
+            Map<String, String> messages = new HashMap<>();
+            for (String commitID : commitIDs()) {
+                messages.put(commitID, readCommit(commitID).getMessage());
+            }
+            messageIndex.write(messages);
+        }
+        return messageIndex;
+    }
+
+    /**
+     * Folds every loose object and every existing pack into one new pack,
+     * then removes what it replaced. Objects are copied in their stored form.
+     */
+    void repack() {
+        List<String> looseCommits = looseIDs(commitDir);
+        List<String> looseTrees = looseIDs(treeDir);
+        List<String> looseBlobs = looseIDs(blobDir);
+        List<String> looseChunks = looseIDs(chunkDir);
+        List<PackFile> oldPacks = packs();
+        if (looseCommits.isEmpty() && looseTrees.isEmpty() && looseBlobs.isEmpty() && looseChunks.isEmpty()
+                && oldPacks.size() <= 1) {
+            return;
+        }
+
+        PackFile.Writer writer = new PackFile.Writer(packDir);
+        TreeSet<String> written = new TreeSet<>();
+        for (String commitID : looseCommits) {
+            writer.add(commitID, PackFile.COMMIT, join(commitDir, commitID));
+            written.add(commitID);
+        }
+        for (String treeID : looseTrees) {
+            writer.add(treeID, PackFile.TREE, join(treeDir, treeID));
+            written.add(treeID);
+        }
+        for (String chunkID : looseChunks) {
+            writer.add(chunkID, PackFile.CHUNK, join(chunkDir, chunkID));
+            written.add(chunkID);
+        }
+        for (PackFile pack : oldPacks) {
+            for (byte type : new byte[]{PackFile.COMMIT, PackFile.TREE, PackFile.CHUNK}) {
+                for (String id : pack.ids(type)) {
+                    if (written.add(id)) {
+                        writer.add(id, type, pack.read(id, type));
+                    }
+                }
+            }
+        }
+        TreeSet<String> blobIDs = new TreeSet<>(looseBlobs);
+        for (PackFile pack : oldPacks) {
+            blobIDs.addAll(pack.ids(PackFile.BLOB));
+        }
+        packBlobs(writer, blobIDs);
+        PackFile newPack = writer.finish();
+
+        for (PackFile pack : oldPacks) {
+            if (!pack.getPackFile().equals(newPack.getPackFile())) {
+                pack.delete();
+            }
+        }
+        for (String commitID : looseCommits) {
+            join(commitDir, commitID).delete();
+        }
+        for (String treeID : looseTrees) {
+            join(treeDir, treeID).delete();
+        }
+        for (String blobID : looseBlobs) {
+            join(blobDir, blobID).delete();
+        }
+        for (String chunkID : looseChunks) {
+            join(chunkDir, chunkID).delete();
+        }
+        packs = null;
+    }
+
+    /**
+     * Writes the blobs BLOBIDS to WRITER, each as a delta against a similar blob if that is smaller.
+     * <p>
+     * Blobs are visited grouped by the file name they are stored under, so that versions of
+     * one file follow each other, and each is tried against the {@link #DELTA_WINDOW} blobs
+     * before it. Only blobs up to {@link #MAX_DELTA_SIZE} are held in memory for this;
+     * larger ones, and chunk lists, whose chunks are already shared, are copied in their stored form.
+     */
+    private void packBlobs(PackFile.Writer writer, Collection<String> blobIDs) {
+        Map<String, String> names = blobNames();
+        List<String> order = new ArrayList<>(blobIDs);
+        order.sort(Comparator.comparing((String id) -> names.getOrDefault(id, "")).thenComparing(id -> id));
+
+        Deque<DeltaBase> window = new ArrayDeque<>();
+        for (String blobID : order) {
+            byte[] content = readChunkList(blobID) == null ? readBlobUpTo(blobID, MAX_DELTA_SIZE) : null;
+            if (content == null) {
+                copyStoredBlob(writer, blobID);
+                continue;
+            }
+
+            ByteBuffer whole = storedBlob(blobID);
+            int wholeSize = whole != null ? whole.remaining() : Integer.MAX_VALUE;
+            byte[] best = null;
+            DeltaBase bestBase = null;
+            for (DeltaBase base : content.length < MIN_DELTA_SIZE ? List.<DeltaBase>of() : window) {
+                if (base.depth >= MAX_DELTA_DEPTH) {
+                    continue;
+                }
+                byte[] delta = Delta.create(base.content, content, content.length / 2);
+                if (delta == null) {
+                    continue;
+                }
+                byte[] payload = deltaPayload(base.blobID, delta);
+                if (payload.length < wholeSize && (best == null || payload.length < best.length)) {
+                    best = payload;
+                    bestBase = base;
+                }
+            }
+
+            if (best != null) {
+                writer.addDelta(blobID, best);
+            } else if (whole != null) {
+                writer.add(blobID, PackFile.BLOB, whole);
+            } else {
+                writer.add(blobID, PackFile.BLOB, compress(content));
+            }
+            window.addFirst(new DeltaBase(blobID, content, bestBase == null ? 0 : bestBase.depth + 1));
+            if (window.size() > DELTA_WINDOW) {
+                window.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Returns the file name each blob is stored under in some tree, or in a commit made
+     * before trees existed: blob ID -> name.
+     */
+    private Map<String, String> blobNames() {
+        Map<String, String> names = new HashMap<>();
+        TreeSet<String> treeIDs = new TreeSet<>(looseIDs(treeDir));
+        for (PackFile pack : packs()) {
+            treeIDs.addAll(pack.ids(PackFile.TREE));
+        }
+        for (String treeID : treeIDs) {
+            for (Map.Entry<String, String> entry : readTree(treeID).getBlobs().entrySet()) {
+                names.putIfAbsent(entry.getValue(), entry.getKey());
+            }
+        }
+        for (String commitID : commitIDs()) {
+            Map<String, String> blobs = readCommit(commitID).getBlobs();
+            if (blobs != null) {
+                for (Map.Entry<String, String> entry : blobs.entrySet()) {
+                    names.putIfAbsent(entry.getValue(), entry.getKey());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the content of the blob with the given ID, or null if it is longer than LIMIT.
+     */
+    private byte[] readBlobUpTo(String blobID, int limit) {
+        try (InputStream in = openBlob(blobID)) {
+            if (in == null) {
+                throw error("Missing blob %s", blobID);
+            }
+            byte[] content = in.readNBytes(limit + 1);
+            return content.length > limit ? null : content;
+        } catch (IOException excp) {
+            throw error("Failed to read blob %s: %s", blobID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the stored form of the whole blob with the given ID, or null if it is packed as a delta.
+     */
+    private ByteBuffer storedBlob(String blobID) {
+        for (PackFile pack : packs()) {
+            ByteBuffer stored = pack.read(blobID, PackFile.BLOB);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        File loose = join(blobDir, blobID);
+        return loose.isFile() ? ByteBuffer.wrap(readContents(loose)) : null;
+    }
+
+    /**
+     * Appends the stored form of a blob not stored as a delta, streaming it if it is loose.
+     */
+    private void copyStoredBlob(PackFile.Writer writer, String blobID) {
+        File loose = join(blobDir, blobID);
+        if (loose.isFile()) {
+            writer.add(blobID, PackFile.BLOB, loose);
+            return;
+        }
+        ByteBuffer stored = storedBlob(blobID);
+        if (stored == null) {
+            throw error("Missing blob %s", blobID);
+        }
+        writer.add(blobID, PackFile.BLOB, stored);
+    }
+
+    /**
+     * Returns the content of the blob with the given ID if a pack stores it as a delta, otherwise null.
+     */
+    private byte[] readDelta(String blobID) {
+        for (PackFile pack : packs()) {
+            if (pack.read(blobID, PackFile.BLOB_DELTA) != null) {
+                return resolveDelta(pack, blobID);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds a delta blob of PACK: follows the chain of bases down to a whole or cached blob,
+     * then applies the deltas back up. Every blob rebuilt on the way is cached,
+     * as blobs near the bottom of a chain are the bases of many others.
+     */
+    private byte[] resolveDelta(PackFile pack, String blobID) {
+        Deque<String> chain = new ArrayDeque<>();
+        Deque<ByteBuffer> deltas = new ArrayDeque<>();
+        String id = blobID;
+        byte[] content = deltaBases.get(id);
+        while (content == null) {
+            ByteBuffer payload = pack.read(id, PackFile.BLOB_DELTA);
+            if (payload == null) {
+                InputStream whole = pack.open(id, PackFile.BLOB);
+                if (whole == null) {
+                    throw error("Missing delta base %s", id);
+                }
+                try (InputStream in = decodeBlob(whole)) {
+                    content = in.readAllBytes();
+                } catch (IOException excp) {
+                    throw error("Failed to read blob %s: %s", id, excp.getMessage());
+                }
+                deltaBases.put(id, content);
+                break;
+            }
+            chain.push(id);
+            deltas.push(payload);
+            byte[] baseID = new byte[UID_LENGTH / 2];
+            payload.get(0, baseID);
+            id = PackFile.toHex(baseID);
+            content = deltaBases.get(id);
+        }
+        while (!chain.isEmpty()) {
+            ByteBuffer payload = deltas.pop();
+            content = Delta.apply(content, inflate(payload.slice(UID_LENGTH / 2, payload.remaining() - UID_LENGTH / 2)));
+            deltaBases.put(chain.pop(), content);
+        }
+        return content;
+    }
+
+    private static byte[] deltaPayload(String baseID, byte[] delta) {
+        byte[] compressed = deflate(delta);
+        byte[] payload = Arrays.copyOf(PackFile.toBytes(baseID), UID_LENGTH / 2 + compressed.length);
+        System.arraycopy(compressed, 0, payload, UID_LENGTH / 2, compressed.length);
+        return payload;
+    }
+
+    /**
+     * Returns the stored form of a whole blob with the given CONTENT.
+     */
+    private static byte[] compress(byte[] content) {
+        byte[] compressed = deflate(content);
+        byte[] stored = Arrays.copyOf(BLOB_MAGIC, BLOB_MAGIC.length + compressed.length);
+        System.arraycopy(compressed, 0, stored, BLOB_MAGIC.length, compressed.length);
+        return stored;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(bytes);
+        } catch (IOException excp) {
+            throw error("Failed to compress: %s", excp.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(ByteBuffer compressed) {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(toArray(compressed)))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw error("Failed to decompress: %s", excp.getMessage());
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A blob in the delta window of {@link #packBlobs}.
+     */
+    private static class DeltaBase {
+        private final String blobID;
+        private final byte[] content;
+
+        /**
+         * Number of deltas applied to read the blob; 0 for a whole blob.
+         */
+        private final int depth;
+
+        DeltaBase(String blobID, byte[] content, int depth) {
+            this.blobID = blobID;
+            this.content = content;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Compresses IN into a temporary file, then moves it into place as the blob ID.
+     */
+    private void writeBlob(String blobID, InputStream in) {
+        if (hasBlob(blobID)) {
+            return;
+        }
+        try {
+            moveIntoPlace(compressToTemp(in, null), join(blobDir, blobID));
+        } catch (IOException excp) {
+            throw error("Failed to write blob %s: %s", blobID, excp.getMessage());
+        }
+        upgradeFormat();
+    }
+
+    /**
+     * Writes IN as a compressed blob to a new temporary file in the blob directory,
+     * feeding every byte read to DIGEST as well when it is not null.
+     */
+    private File compressToTemp(InputStream in, MessageDigest digest) throws IOException {
+        File tmp = File.createTempFile("tmp-", null, blobDir);
+        Deflater deflater = new Deflater();
+        try (OutputStream raw = Files.newOutputStream(tmp.toPath())) {
+            raw.write(BLOB_MAGIC);
+            DeflaterOutputStream out = new DeflaterOutputStream(raw, deflater, Blob.BUFFER_SIZE);
+            byte[] buffer = new byte[Blob.BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                if (digest != null) {
+                    digest.update(buffer, 0, n);
+                }
+                out.write(buffer, 0, n);
+            }
+            out.finish();
+        } catch (IOException excp) {
+            Files.deleteIfExists(tmp.toPath());
+            throw excp;
+        } finally {
+            deflater.end();
+        }
+        return tmp;
+    }
+
+    /**
+     * Returns a stream over the content of a stored blob, which is either compressed
+     * (after {@link #BLOB_MAGIC}), a chunk list, or a legacy serialized {@link Blob}.
+     */
+    private InputStream decodeBlob(InputStream stored) {
+        try {
+            PushbackInputStream in = new PushbackInputStream(stored, BLOB_MAGIC.length);
+            byte[] header = in.readNBytes(BLOB_MAGIC.length);
+            if (Arrays.equals(header, BLOB_MAGIC)) {
+                return new InflaterInputStream(in);
+            }
+            if (Arrays.equals(header, ChunkedBlob.MAGIC)) {
+                try (InputStream list = in) {
+                    return openChunks(ChunkedBlob.read(list));
+                }
+            }
+            in.unread(header);
+            Blob legacy = deserialize(in, Blob.class);
+            return new ByteArrayInputStream(legacy.getContent());
+        } catch (IOException excp) {
+            throw error("Failed to read blob: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * Raises the format version of an older store to the current one, the first time
+     * an object in the current format is written to it.
+     */
+    void upgradeFormat() {
+        if (formatVersion < FORMAT_VERSION) {
+            initFormat(gitletDir);
+            formatVersion = FORMAT_VERSION;
+        }
+    }
+
+    private static void createDirectory(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw error("Failed to create directory: %s", directory);
+        }
+    }
+
+    private static void moveIntoPlace(File tmp, File dest) throws IOException {
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the stored bytes of the object with the given ID and type,
+     * packed or loose in DIRECTORY, or null if there is none. Those of a packed object
+     * are a read-only view of the mapped pack, not a copy.
+     */
+    private ByteBuffer readStored(String id, byte type, File directory) {
+        for (PackFile pack : packs()) {
+            ByteBuffer payload = pack.read(id, type);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        File loose = join(directory, id);
+        return loose.isFile() ? ByteBuffer.wrap(readContents(loose)) : null;
+    }
+
+    private ByteBuffer readStoredOrFail(String id, byte type, File directory) {
+        ByteBuffer stored = readStored(id, type, directory);
+        if (stored == null) {
+            throw error("Missing object %s", id);
+        }
+        return stored;
+    }
+
+    /**
+     * Returns a stream over the packed object, or null if no pack holds it.
+     * Packs are consulted before loose files so that a warm lookup needs no system calls.
+     */
+    private InputStream openPacked(String id, byte type) {
+        for (PackFile pack : packs()) {
+            InputStream payload = pack.open(id, type);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        return null;
+    }
+
+    private boolean isPacked(String id, byte type) {
+        for (PackFile pack : packs()) {
+            if (pack.typeOf(id) == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes packs added since they were last listed visible.
+     */
+    private synchronized void reloadPacks() {
+        packs = null;
+    }
+
+    /**
+     * Returns the packs of this store; synchronized, as blobs are restored from several threads.
+     */
+    private synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(packDir);
+            for (String name : names != null ? names : List.<String>of()) {
+                if (name.startsWith("pack-") && name.endsWith(".pack")) {
+                    packs.add(new PackFile(join(packDir, name)));
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Returns the IDs of the loose objects in DIRECTORY, skipping temporary files.
+     */
+    private static List<String> looseIDs(File directory) {
+        List<String> ids = new ArrayList<>();
+        List<String> names = plainFilenamesIn(directory);
+        if (names != null) {
+            for (String name : names) {
+                if (PackFile.toBytes(name) != null) {
+                    ids.add(name);
+                }
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,646 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents a packfile: many objects appended to a single {@code .pack} file,
+ * together with a {@code .idx} file that maps every object ID to its offset.
+ * <p>
+ * Pack layout: {@code "PACK" | version | count}, followed by one record per object,
+ * {@code type | length | payload}. A blob may be stored as a {@link #BLOB_DELTA} record
+ * against another blob of the same pack; its index entry still says {@link #BLOB}.
+ * <p>
+ * Index layout: {@code "PIDX" | version | count}, a fanout table of 256 cumulative counts
+ * (entry {@code i} is the number of IDs whose first byte is at most {@code i}),
+ * followed by fixed-width entries {@code id (20 bytes) | type | offset} sorted by ID.
+ * A lookup uses the fanout table to narrow the search to IDs sharing the first byte,
+ * then binary-searches that range.
+ * <p>
+ * Both files are memory-mapped on first use, so once the mapping is warm a lookup
+ * and the decoding of the object it finds happen without system calls or copies.
+ * A buffer can map at most 2 GiB, so the pack is mapped in {@link #SEGMENT_SIZE} segments,
+ * each overlapping the next by a record header; a record that runs past the end of its segment
+ * is mapped on its own when read. Mappings are only read with absolute positions,
+ * so one pack can serve several threads.
+ *
+ * @author huang.kai
+ */
+class PackFile {
+    /**
+     * Object type of a commit record.
+     */
+    static final byte COMMIT = 1;
+
+    /**
+     * Object type of a blob record.
+     */
+    static final byte BLOB = 2;
+
+    /**
+     * Object type of a tree record.
+     */
+    static final byte TREE = 3;
+
+    /**
+     * Record type of a blob stored as the ID of a base blob in the same pack,
+     * followed by the deflate-compressed {@link Delta} that rebuilds the blob from it.
+     */
+    static final byte BLOB_DELTA = 4;
+
+    /**
+     * Object type of a chunk of a blob stored as a {@link ChunkedBlob}.
+     */
+    static final byte CHUNK = 5;
+
+    private static final int PACK_MAGIC = 0x5041434b;
+    private static final int IDX_MAGIC = 0x50494458;
+    private static final int PACK_VERSION = 1;
+    private static final int IDX_VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * Integer.BYTES;
+    private static final int ID_SIZE = UID_LENGTH / 2;
+    private static final int IDX_ENTRY_SIZE = ID_SIZE + 1 + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 1 + Integer.BYTES;
+
+    /**
+     * Size of the pack segments mapped at once, not counting their overlap.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File packFile;
+    private final File idxFile;
+
+    /**
+     * Mapping of the index file, created on first lookup.
+     */
+    private ByteBuffer index;
+
+    /**
+     * Mappings of the segments of the pack file, created on first read.
+     */
+    private ByteBuffer[] data;
+
+    /**
+     * Size of the pack file, known once it is mapped.
+     */
+    private long size;
+
+    /**
+     * Number of objects in this pack.
+     */
+    private int count;
+
+    PackFile(File packFile) {
+        this.packFile = packFile;
+        String name = packFile.getName();
+        this.idxFile = new File(packFile.getParentFile(),
+                name.substring(0, name.length() - ".pack".length()) + ".idx");
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    File getIdxFile() {
+        return idxFile;
+    }
+
+    /**
+     * Returns the type of the object ID in this pack, or -1 if it is not packed here.
+     */
+    byte typeOf(String id) {
+        int pos = find(id);
+        return pos < 0 ? -1 : index().get(entryOffset(pos) + ID_SIZE);
+    }
+
+    /**
+     * Returns the payload of the object ID if its record here has the given type,
+     * otherwise null. The returned buffer is a read-only view of the mapped pack.
+     */
+    ByteBuffer read(String id, byte type) {
+        int pos = find(id);
+        if (pos < 0) {
+            return null;
+        }
+        long offset = index().getLong(entryOffset(pos) + ID_SIZE + 1);
+        return recordType(offset) == type ? payloadAt(offset) : null;
+    }
+
+    /**
+     * Returns a stream over the payload of the object ID, as for {@link #read(String, byte)}.
+     */
+    InputStream open(String id, byte type) {
+        ByteBuffer payload = read(id, type);
+        return payload == null ? null : new BufferInputStream(payload);
+    }
+
+    /**
+     * Returns the IDs of all objects of the given type, in sorted order.
+     */
+    List<String> ids(byte type) {
+        return streamIDs(type).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the IDs of the objects of the given type in index order, reading them lazily.
+     */
+    Stream<String> streamIDs(byte type) {
+        ByteBuffer idx = index();
+        return IntStream.range(0, count)
+                .filter(i -> idx.get(entryOffset(i) + ID_SIZE) == type)
+                .mapToObj(i -> toHex(idx, entryOffset(i)));
+    }
+
+    /**
+     * Deletes both the pack and its index.
+     */
+    void delete() {
+        idxFile.delete();
+        packFile.delete();
+    }
+
+    /**
+     * Writes this pack to OUT, as its length followed by its bytes, for {@link #readFrom}
+     * at the other end of a connection. The index is not sent: the receiver builds its own.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(packFile.length());
+        Files.copy(packFile.toPath(), out);
+    }
+
+    /**
+     * Reads a pack written by {@link #writeTo} from IN into the file TARGET and returns it,
+     * without an index. Nothing in it is checked but its header: see {@link #records()}.
+     */
+    static PackFile readFrom(DataInputStream in, File target) throws IOException {
+        receive(in, target);
+        return new PackFile(target);
+    }
+
+    /**
+     * Reads past a pack written by {@link #writeTo}, keeping nothing of it.
+     */
+    static void skip(DataInputStream in) throws IOException {
+        in.skipNBytes(in.readLong());
+    }
+
+    /**
+     * Returns the records of this pack in pack order, read without the index, as for a pack
+     * just received whose index is yet to be built.
+     */
+    List<Record> records() {
+        ByteBuffer[] segments = data();
+        if (segments[0].getInt(4) != PACK_VERSION) {
+            throw error("Corrupt pack %s", packFile.getName());
+        }
+        int recordCount = segments[0].getInt(8);
+        List<Record> result = new ArrayList<>();
+        long offset = HEADER_SIZE;
+        for (int i = 0; i < recordCount; i++) {
+            byte type = recordType(offset);
+            ByteBuffer payload = payloadAt(offset);
+            result.add(new Record(type, payload));
+            offset += RECORD_HEADER_SIZE + payload.remaining();
+        }
+        if (offset != size) {
+            throw error("Corrupt pack %s", packFile.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Moves this pack and its index into PACKDIR, the index first, and returns the pack there.
+     * A pack of the same name holds the same objects, so if there is one it is kept,
+     * and this one is deleted instead.
+     */
+    PackFile moveTo(File packDir) throws IOException {
+        PackFile moved = new PackFile(join(packDir, packFile.getName()));
+        if (moved.packFile.exists()) {
+            delete();
+            return moved;
+        }
+        // An index without its pack was left by an interrupted move, and is not in use.
+        Files.move(idxFile.toPath(), moved.idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(packFile.toPath(), moved.packFile.toPath());
+        return moved;
+    }
+
+    /**
+     * Copies a length-prefixed pack from IN to TARGET.
+     */
+    private static void receive(DataInputStream in, File target) throws IOException {
+        long remaining = in.readLong();
+        if (remaining < Integer.BYTES || in.readInt() != PACK_MAGIC) {
+            throw error("Corrupt pack received");
+        }
+        remaining -= Integer.BYTES;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+            out.writeInt(PACK_MAGIC);
+            byte[] buffer = new byte[1 << 16];
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("Connection closed while receiving a pack");
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    private synchronized ByteBuffer index() {
+        if (index == null) {
+            ByteBuffer idx = map(idxFile, 0, idxFile.length());
+            if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != IDX_VERSION) {
+                throw error("Corrupt pack index %s", idxFile.getName());
+            }
+            count = idx.getInt(8);
+            index = idx;
+        }
+        return index;
+    }
+
+    private synchronized ByteBuffer[] data() {
+        if (data == null) {
+            try (FileChannel channel = FileChannel.open(packFile.toPath())) {
+                long fileSize = channel.size();
+                ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    long end = Math.min(fileSize, start + SEGMENT_SIZE + RECORD_HEADER_SIZE);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, end - start));
+                }
+                if (fileSize < HEADER_SIZE || segments[0].getInt(0) != PACK_MAGIC) {
+                    throw error("Corrupt pack %s", packFile.getName());
+                }
+                size = fileSize;
+                data = segments;
+            } catch (IOException excp) {
+                throw error("Failed to map %s: %s", packFile.getName(), excp.getMessage());
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns the type of the record at OFFSET in the pack.
+     */
+    private byte recordType(long offset) {
+        ByteBuffer[] segments = data();
+        if (offset < HEADER_SIZE || offset + RECORD_HEADER_SIZE > size) {
+            throw error("Corrupt pack %s", packFile.getName());
+        }
+        return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Returns the payload of the record at OFFSET in the pack, as a read-only view of the mapping.
+     */
+    private ByteBuffer payloadAt(long offset) {
+        recordType(offset);
+        ByteBuffer segment = data()[(int) (offset / SEGMENT_SIZE)];
+        int local = (int) (offset % SEGMENT_SIZE);
+        int length = segment.getInt(local + 1);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > size) {
+            throw error("Corrupt pack %s", packFile.getName());
+        }
+        if ((long) local + RECORD_HEADER_SIZE + length <= segment.limit()) {
+            return segment.slice(local + RECORD_HEADER_SIZE, length);
+        }
+        return map(packFile, offset + RECORD_HEADER_SIZE, length);
+    }
+
+    /**
+     * Maps LENGTH bytes of the file from OFFSET read-only.
+     * The mapping stays valid after the channel is closed.
+     */
+    private static ByteBuffer map(File file, long offset, long length) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            if (length > Integer.MAX_VALUE) {
+                throw error("%s is too large to map", file.getName());
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException excp) {
+            throw error("Failed to map %s: %s", file.getName(), excp.getMessage());
+        }
+    }
+
+    private int entryOffset(int pos) {
+        return HEADER_SIZE + FANOUT_SIZE + pos * IDX_ENTRY_SIZE;
+    }
+
+    /**
+     * Searches the index for the object ID, returning its position or -1.
+     * The fanout table bounds the search to IDs with the same first byte.
+     */
+    private int find(String id) {
+        byte[] key = toBytes(id);
+        if (key == null) {
+            return -1;
+        }
+        ByteBuffer idx = index();
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(HEADER_SIZE + (first - 1) * Integer.BYTES);
+        int hi = idx.getInt(HEADER_SIZE + first * Integer.BYTES) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(idx, entryOffset(mid), key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the raw ID at OFFSET in BUF with the raw ID KEY, as unsigned bytes.
+     */
+    static int compare(ByteBuffer buf, int offset, byte[] key) {
+        for (int i = 0; i < ID_SIZE; i++) {
+            int cmp = Integer.compare(buf.get(offset + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two raw IDs as unsigned bytes, the order IDs are sorted in on disk.
+     */
+    static int compareIds(byte[] a, byte[] b) {
+        return compare(ByteBuffer.wrap(a), 0, b);
+    }
+
+    /**
+     * Converts a full hexadecimal object ID to its 20 raw bytes, or null if ID is not one.
+     */
+    static byte[] toBytes(String id) {
+        if (id.length() != UID_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[ID_SIZE];
+        for (int i = 0; i < ID_SIZE; i++) {
+            int hi = Character.digit(id.charAt(2 * i), 16);
+            int lo = Character.digit(id.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Converts raw ID bytes to a hexadecimal object ID.
+     */
+    static String toHex(byte[] bytes) {
+        return toHex(ByteBuffer.wrap(bytes), 0);
+    }
+
+    private static String toHex(ByteBuffer buf, int offset) {
+        char[] result = new char[UID_LENGTH];
+        for (int i = 0; i < ID_SIZE; i++) {
+            int b = buf.get(offset + i) & 0xff;
+            result[2 * i] = HEX_DIGITS[b >>> 4];
+            result[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(result);
+    }
+
+    /**
+     * An input stream over a buffer, so objects decode straight from the mapping.
+     */
+    static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Appends objects to a new pack, then writes its sorted index on {@link #finish()}.
+     */
+    static class Writer {
+        private final File packDir;
+        private final File tmpPack;
+        private final DataOutputStream out;
+        private final MessageDigest digest;
+        private final List<Entry> entries = new ArrayList<>();
+        private long offset = HEADER_SIZE;
+
+        Writer(File packDir) {
+            this.packDir = packDir;
+            if (!packDir.exists() && !packDir.mkdirs()) {
+                throw error("Failed to create directory: %s", packDir);
+            }
+            try {
+                this.tmpPack = File.createTempFile("tmp-", ".pack", packDir);
+                this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPack)));
+                this.digest = MessageDigest.getInstance("SHA-1");
+                // The count is patched in finish(), once it is known.
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(PACK_VERSION);
+                out.writeInt(0);
+            } catch (IOException | NoSuchAlgorithmException excp) {
+                throw error("Failed to create pack: %s", excp.getMessage());
+            }
+        }
+
+        /**
+         * Appends the object ID with the given type and payload.
+         */
+        void add(String id, byte type, byte[] payload) {
+            add(id, type, ByteBuffer.wrap(payload));
+        }
+
+        /**
+         * Appends the object ID with the given type, streaming its payload from SOURCE.
+         */
+        void add(String id, byte type, File source) {
+            byte[] key = toBytes(id);
+            if (key == null) {
+                throw error("Invalid object id %s", id);
+            }
+            long length = source.length();
+            if (length > Integer.MAX_VALUE) {
+                throw error("Object %s is too large to pack", id);
+            }
+            try {
+                out.writeByte(type);
+                out.writeInt((int) length);
+                Files.copy(source.toPath(), out);
+            } catch (IOException excp) {
+                throw error("Failed to write pack: %s", excp.getMessage());
+            }
+            entries.add(new Entry(key, type, offset));
+            offset += 1 + Integer.BYTES + length;
+        }
+
+        /**
+         * Appends the object ID with the given type and the remaining bytes of PAYLOAD.
+         */
+        void add(String id, byte type, ByteBuffer payload) {
+            add(id, type, type, payload);
+        }
+
+        /**
+         * Appends the blob ID as a {@link #BLOB_DELTA} record with the given payload.
+         */
+        void addDelta(String id, byte[] payload) {
+            add(id, BLOB, BLOB_DELTA, ByteBuffer.wrap(payload));
+        }
+
+        private void add(String id, byte type, byte recordType, ByteBuffer payload) {
+            byte[] key = toBytes(id);
+            if (key == null) {
+                throw error("Invalid object id %s", id);
+            }
+            int length = payload.remaining();
+            try {
+                out.writeByte(recordType);
+                out.writeInt(length);
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+            } catch (IOException excp) {
+                throw error("Failed to write pack: %s", excp.getMessage());
+            }
+            entries.add(new Entry(key, type, offset));
+            offset += 1 + Integer.BYTES + length;
+        }
+
+        /**
+         * Drops the pack being written.
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException excp) {
+                // The pack is deleted all the same.
+            }
+            tmpPack.delete();
+        }
+
+        /**
+         * Completes the pack, writes its index and moves both into place.
+         * The pack is named after the SHA-1 of its sorted object IDs.
+         */
+        PackFile finish() {
+            entries.sort(Comparator.comparing(e -> e.id, PackFile::compareIds));
+            ByteBuffer idx = ByteBuffer.allocate(HEADER_SIZE + FANOUT_SIZE + entries.size() * IDX_ENTRY_SIZE);
+            idx.putInt(IDX_MAGIC).putInt(IDX_VERSION).putInt(entries.size());
+            int[] fanout = new int[256];
+            for (Entry entry : entries) {
+                fanout[entry.id[0] & 0xff]++;
+            }
+            for (int i = 0, total = 0; i < fanout.length; i++) {
+                total += fanout[i];
+                idx.putInt(total);
+            }
+            for (Entry entry : entries) {
+                digest.update(entry.id);
+                idx.put(entry.id).put(entry.type).putLong(entry.offset);
+            }
+
+            try {
+                out.close();
+                try (RandomAccessFile raf = new RandomAccessFile(tmpPack, "rw")) {
+                    raf.seek(8);
+                    raf.writeInt(entries.size());
+                }
+            } catch (IOException excp) {
+                throw error("Failed to write pack: %s", excp.getMessage());
+            }
+
+            String name = "pack-" + toHex(digest.digest());
+            File pack = join(packDir, name + ".pack");
+            File idxFile = join(packDir, name + ".idx");
+            // The index goes first: a pack only becomes visible once both files exist.
+            // Both are renamed into place so that existing mappings of a same-named pack stay intact.
+            File tmpIdx = join(packDir, tmpPack.getName() + ".idx");
+            writeContents(tmpIdx, (Object) idx.array());
+            if (!tmpIdx.renameTo(idxFile) || !tmpPack.renameTo(pack)) {
+                throw error("Failed to create pack %s", pack.getName());
+            }
+            return new PackFile(pack);
+        }
+    }
+
+    /**
+     * A record read by {@link #records()}: its type and a view of its payload.
+     */
+    static class Record {
+        final byte type;
+        final ByteBuffer payload;
+
+        Record(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    private static class Entry {
+        private final byte[] id;
+        private final byte type;
+        private final long offset;
+
+        Entry(byte[] id, byte type, long offset) {
+            this.id = id;
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+}
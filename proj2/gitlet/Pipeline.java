@@ -0,0 +1,57 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static gitlet.Utils.*;
+
+/**
+ * Runs tasks on the common fork-join pool while the caller keeps producing them, with at most
+ * a fixed number in flight. A producer that is faster than its tasks, such as one cutting a
+ * large file into chunks to compress, waits for the oldest task instead of queueing every
+ * chunk in memory.
+ *
+ * @author huang.kai
+ */
+class Pipeline {
+    private final int limit;
+    private final Deque<CompletableFuture<Void>> running = new ArrayDeque<>();
+
+    Pipeline() {
+        this.limit = 2 * Math.max(ForkJoinPool.getCommonPoolParallelism(), 1);
+    }
+
+    /**
+     * Starts TASK, first waiting for the oldest running task if the limit is reached.
+     * A failure of an earlier task is rethrown here or by {@link #finish()}.
+     */
+    void submit(Runnable task) {
+        if (running.size() >= limit) {
+            await(running.poll());
+        }
+        running.add(CompletableFuture.runAsync(task));
+    }
+
+    /**
+     * Waits for every submitted task.
+     */
+    void finish() {
+        while (!running.isEmpty()) {
+            await(running.poll());
+        }
+    }
+
+    private static void await(CompletableFuture<Void> task) {
+        try {
+            task.join();
+        } catch (CompletionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("Task failed: %s", excp.getCause().getMessage());
+        }
+    }
+}
@@ -13,6 +13,12 @@ import static gitlet.Utils.*;
  * @author huang.kai
  */
 public class RemoteRepository implements Serializable {
+    /**
+     * Pinned to the value of the original class, so that Java-serialized remotes
+     * saved by an older version still read.
+     */
+    private static final long serialVersionUID = -3724129705987748226L;
+
     /**
      * Maps remote name to remote path.
      */
@@ -28,7 +34,8 @@ public class RemoteRepository implements Serializable {
             abort("A remote with that name already exists.");
         }
 
-        String normalizedPath = path.replace("/", File.separator);
+        // A daemon URL is kept as it is; only paths use the separator of this system.
+        String normalizedPath = path.startsWith(Transport.URL_SCHEME) ? path : path.replace("/", File.separator);
         remotes.put(name, normalizedPath);
     }
 
@@ -51,6 +58,32 @@ public class RemoteRepository implements Serializable {
         return new File(getRemotePath(name));
     }
 
+    /**
+     * Returns the bytes the remotes are saved as, in the binary form of {@link Codec}.
+     */
+    byte[] encode() {
+        return Codec.encode(Codec.REMOTES, out -> {
+            out.writeInt(remotes.size());
+            for (Map.Entry<String, String> entry : remotes.entrySet()) {
+                Codec.writeString(out, entry.getKey());
+                Codec.writeString(out, entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Returns the remotes saved as BYTES, in the binary form or Java-serialized.
+     */
+    static RemoteRepository decode(byte[] bytes) {
+        return Codec.decode(bytes, Codec.REMOTES, RemoteRepository.class, (in, version) -> {
+            RemoteRepository remoteRepository = new RemoteRepository();
+            for (int n = in.readInt(); n > 0; n--) {
+                remoteRepository.remotes.put(Codec.readString(in), Codec.readString(in));
+            }
+            return remoteRepository;
+        });
+    }
+
     private boolean hasRemote(String name) {
         return remotes.containsKey(name);
     }
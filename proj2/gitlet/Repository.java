@@ -1,8 +1,19 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
@@ -24,11 +35,14 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
     public static final File COMMIT_DIR = join(OBJECTS_DIR, "commits");
+    public static final File TREE_DIR = join(OBJECTS_DIR, "trees");
     public static final File BLOB_DIR = join(COMMIT_DIR, "blobs");
+    public static final File PACK_DIR = join(OBJECTS_DIR, "pack");
     public static final File REFS_DIR = join(GITLET_DIR, "refs");
     public static final File HEADS_DIR = join(REFS_DIR, "heads");
     public static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
     public static final File STAGE_FILE = join(GITLET_DIR, "stage");
+    public static final File STAGE_JOURNAL_FILE = join(GITLET_DIR, "stage-journal");
     public static final File REMOTES_FILE = join(GITLET_DIR, "remotes");
 
     /**
@@ -36,6 +50,31 @@ public class Repository {
      */
     public static final String DEFAULT_BRANCH = "master";
 
+    /**
+     * Characters that make a filename a glob pattern, see {@link #expandGlobs}.
+     */
+    private static final Pattern GLOB = Pattern.compile("[*?\\[{]");
+
+    /**
+     * The stat index of the working directory, see {@link #statIndex()}.
+     */
+    private static StatIndex statIndex;
+
+    /**
+     * The number of threads that hash working files unless the {@code --jobs} option says otherwise.
+     */
+    static final int DEFAULT_JOBS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of threads that hash working files, set by the {@code --jobs} option.
+     */
+    private static int jobs = DEFAULT_JOBS;
+
+    /**
+     * The staging area as last read or written, see {@link #readStage()}.
+     */
+    private static Stage stage;
+
     /**
      * Creates a new Gitlet version-control system in the current directory.
      * <p>
@@ -59,11 +98,29 @@ public class Repository {
         }
 
         setupDirectories();
+        ObjectStore.initFormat(GITLET_DIR);
         setupStagingArea();
         setupRemotes();
         createInitialCommit();
     }
 
+    /**
+     * Sets the number of threads used to hash working files.
+     */
+    public static void setJobs(int jobs) {
+        Repository.jobs = jobs;
+    }
+
+    /**
+     * Prints on standard error how often the object store found what it read cached,
+     * since it was opened, if there is a repository.
+     */
+    public static void printCacheStats() {
+        if (isInitialized()) {
+            System.err.print(objectStore().cacheStats());
+        }
+    }
+
     public static void ensureInitialized() {
         if (!isInitialized()) {
             abort("Not in an initialized Gitlet directory.");
@@ -82,54 +139,121 @@ public class Repository {
      * do not stage it to be added, and remove it from the staging area if it is already there
      * (as can happen when a file is changed, added, and then changed back to it’s original version).
      * The file will no longer be staged for removal (see gitlet rm), if it was at the time of the command.
+     * <p>
+     * Any number of files are added at once, and a filename that names no file but holds glob
+     * characters stands for the working files it matches. If one of the files does not exist,
+     * none is added.
      */
-    public static void add(String filename) {
-        File file = Utils.join(CWD, filename);
-        if (!file.exists()) {
-            abort("File does not exist.");
+    public static void add(List<String> filenames) {
+        List<String> paths = expandGlobs(filenames, Repository::workingFiles);
+        for (String filename : paths) {
+            File file = join(CWD, filename);
+            if (!file.isFile() || filename.startsWith("..") || filename.split("/")[0].equals(".gitlet")) {
+                abort("File does not exist.");
+            }
         }
 
         Stage stage = readStage();
-        Blob blob = new Blob(file);
-        Commit currentCommit = getCurrentCommit();
-        String existBlobID = currentCommit.getBlobs().get(filename);
-        // Current working version of the file is identical to the version in the current commit.
-        if (existBlobID != null && existBlobID.equals(blob.getBlobID())) {
-            stage.getAdded().remove(filename);
-            stage.getRemoved().remove(filename);
-            writeStage(stage);
-            return;
-        }
+        stageFiles(paths, stage, trackedLookup(getCurrentCommit(), paths.size()));
+        writeStage(stage);
+    }
 
-        File blobFile = join(BLOB_DIR, blob.getBlobID());
-        writeObject(blobFile, blob);
-        stage.addFile(filename, blob.getBlobID());
+    /**
+     * Stages every change in the working directory: files that differ from the current commit
+     * are staged for addition, as by {@link #add}, and tracked files that were deleted are staged
+     * for removal. Files staged for addition that were deleted since are unstaged.
+     */
+    public static void addAll() {
+        Stage stage = readStage();
+        Map<String, String> tracked = trackedFiles(getCurrentCommit());
+        List<String> working = workingFiles();
+        stageFiles(working, stage, tracked::get);
+
+        Set<String> workingSet = new HashSet<>(working);
+        for (String filename : tracked.keySet()) {
+            if (!workingSet.contains(filename) && !stage.getRemoved().contains(filename)) {
+                stage.stageForRemoval(filename);
+            }
+        }
+        for (String filename : new ArrayList<>(stage.getAdded().keySet())) {
+            if (!workingSet.contains(filename)) {
+                stage.unstageFile(filename);
+            }
+        }
         writeStage(stage);
     }
 
+    /**
+     * Stages the working files PATHS for addition, or unstages those identical to their version in
+     * the current commit, which TRACKED gives. Files whose stat data changed are hashed and stored
+     * in parallel, and their new blobs move into the store as one batch.
+     */
+    private static void stageFiles(List<String> paths, Stage stage, Function<String, String> tracked) {
+        StatIndex index = statIndex();
+        ObjectStore store = objectStore();
+        Map<String, String> blobIDs = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String path : paths) {
+            // A file whose stat data is unchanged is not read again, as long as its blob is stored.
+            String blobID = index.get(path, join(CWD, path));
+            if (blobID != null && store.hasBlob(blobID)) {
+                blobIDs.put(path, blobID);
+            } else {
+                stale.add(path);
+            }
+        }
+        // Hashes and stores each file in one streaming pass; a blob that already exists is not rewritten.
+        blobIDs.putAll(index.hashBatch(stale, CWD, files -> store.writeBlobs(files, jobs)));
+        index.save();
+
+        for (String path : paths) {
+            String blobID = blobIDs.get(path);
+            // Current working version of the file is identical to the version in the current commit.
+            if (blobID.equals(tracked.apply(path))) {
+                if (stage.getAdded().containsKey(path) || stage.getRemoved().contains(path)) {
+                    stage.resetFile(path);
+                }
+            } else if (!blobID.equals(stage.getAdded().get(path))) {
+                stage.addFile(path, blobID);
+            }
+        }
+    }
+
     /**
      * Unstage the file if it is currently staged for addition.
      * <p>
      * If the file is tracked in the current commit,
      * stage it for removal and remove the file from the working directory
      * if the user has not already done so (do not remove it unless it is tracked in the current commit).
+     * <p>
+     * Any number of files are removed at once, and a filename that names no file but holds glob
+     * characters stands for the tracked and staged files it matches. If there is no reason to
+     * remove one of the files, none is removed.
      */
-    public static void rm(String filename) {
+    public static void rm(List<String> filenames) {
         Stage stage = readStage();
         Commit currentCommit = getCurrentCommit();
-        boolean staged = stage.getAdded().containsKey(filename);
-        boolean tracked = currentCommit.getBlobs().containsKey(filename);
-        if (!staged && !tracked) {
-            abort("No reason to remove the file.");
+        List<String> paths = expandGlobs(filenames, () -> {
+            Set<String> candidates = new TreeSet<>(trackedFiles(currentCommit).keySet());
+            candidates.addAll(stage.getAdded().keySet());
+            return candidates;
+        });
+        Function<String, String> tracked = trackedLookup(currentCommit, paths.size());
+        for (String filename : paths) {
+            if (!stage.getAdded().containsKey(filename) && tracked.apply(filename) == null) {
+                abort("No reason to remove the file.");
+            }
         }
 
-        if (staged) {
-            stage.unstageFile(filename);
-        }
+        for (String filename : paths) {
+            if (stage.getAdded().containsKey(filename)) {
+                stage.unstageFile(filename);
+            }
 
-        if (tracked) {
-            stage.stageForRemoval(filename);
-            Utils.restrictedDelete(Utils.join(CWD, filename));
+            if (tracked.apply(filename) != null) {
+                stage.stageForRemoval(filename);
+                deleteWorkingFile(filename);
+            }
         }
 
         writeStage(stage);
@@ -167,14 +291,11 @@ public class Repository {
 
         Commit parentCommit = getCurrentCommit();
         String parentCommitID = parentCommit.getCommitID();
-        Map<String, String> newBlobs = new TreeMap<>(parentCommit.getBlobs());
-        newBlobs.putAll(stage.getAdded());
-        for (String filename : stage.getRemoved()) {
-            newBlobs.remove(filename);
-        }
+        // Only the trees of directories with staged changes are rewritten.
+        String tree = Tree.update(objectStore(), treeOf(parentCommit), stage.getAdded(), stage.getRemoved());
 
-        Commit commit = new Commit(message, parentCommitID, newBlobs);
-        saveCommit(commit);
+        Commit commit = new Commit(message, parentCommitID, tree);
+        saveCommit(commit, changedPaths(stage));
 
         String currentBranch = getCurrentBranch();
         File branchFile = join(HEADS_DIR, currentBranch);
@@ -256,14 +377,15 @@ public class Repository {
     }
 
     public static void checkout(String commitID, String filename) {
+        filename = toRepoPath(filename);
         Commit commit = getCommitFromID(commitID);
-        Map<String, String> blobs = commit.getBlobs();
-        String blobID = blobs.get(filename);
+        String blobID = trackedBlob(commit, filename);
         if (blobID == null) {
             abort("File does not exist in that commit.");
         }
 
         restoreFile(filename, blobID);
+        statIndex().save();
     }
 
     public static void checkoutBranch(String branchName) {
@@ -281,18 +403,9 @@ public class Repository {
             abort("There is an untracked file in the way; delete it, or add and commit it first.");
         }
 
-        Commit currentCommit = getCurrentCommit();
-        Map<String, String> targetBlobs = targetCommit.getBlobs();
-        for (var entry : targetBlobs.entrySet()) {
-            restoreFile(entry.getKey(), entry.getValue());
-        }
-
-        for (String filename : currentCommit.getBlobs().keySet()) {
-            if (!targetBlobs.containsKey(filename)) {
-                restrictedDelete(join(CWD, filename));
-            }
-        }
+        switchFiles(getCurrentCommit(), targetCommit);
 
+        statIndex().save();
         setCurrentBranch(branchName);
         Stage stage = readStage();
         stage.clear();
@@ -307,25 +420,62 @@ public class Repository {
      * This set of commit nodes is called the commit’s history.
      * For every node in this history, the information it should display is the commit id,
      * the time the commit was made, and the commit message.
+     * <p>
+     * At most LIMIT commits are shown, and the walk stops at the first commit made before
+     * SINCE (ms since the epoch), using the timestamps in the commit-graph. Output is buffered,
+     * and the walk also stops once nobody reads it any more.
+     * <p>
+     * Unless PATH is null, only the commits that changed the file at PATH, given as on the
+     * command line, from their first parent are shown. The changed-path filters in the commit-graph rule out most of the others unread.
      */
-    public static void log() {
-        for (Commit commit = getCurrentCommit();
-             commit != null;
-             commit = getParentCommit(commit)) {
-            System.out.print(commit.getLogString());
-            System.out.println();
+    public static void log(int limit, long since, String path) {
+        // The walk follows the commit-graph; commits are only read to print them.
+        CommitGraph graph = commitGraph();
+        if (path != null) {
+            path = toRepoPath(path);
+        }
+        Writer out = stdout();
+        try {
+            int printed = 0;
+            for (int pos = graph.indexOf(getCurrentCommitID());
+                 pos != CommitGraph.NONE && printed < limit && graph.timestamp(pos) >= since;
+                 pos = graph.parent(pos)) {
+                if (path != null && !changesFile(graph, pos, path)) {
+                    continue;
+                }
+                getCommitFromID(graph.id(pos)).appendLog(out);
+                out.append('\n');
+                printed++;
+            }
+            out.flush();
+        } catch (IOException excp) {
+            // Nobody reads the rest, e.g. the output was piped into head.
         }
     }
 
     /**
      * Like log, except displays information about all commits ever made. The order of the commits does not matter.
+     * <p>
+     * Commits are read and printed one at a time as the object store is listed,
+     * so printing stops as soon as LIMIT commits are shown or the output is closed.
+     * Only commits made at or after SINCE (ms since the epoch) are shown.
      */
-    public static void globalLog() {
-        List<String> allCommitIDs = safeListFiles(COMMIT_DIR);
-        for (String commitID : allCommitIDs) {
-            Commit commit = getCommitFromID(commitID);
-            System.out.print(commit.getLogString());
-            System.out.println();
+    public static void globalLog(int limit, long since) {
+        Writer out = stdout();
+        try (Stream<String> commitIDs = objectStore().streamCommitIDs()) {
+            int printed = 0;
+            Iterator<String> iter = commitIDs.iterator();
+            while (printed < limit && iter.hasNext()) {
+                Commit commit = getCommitFromID(iter.next());
+                if (commit.getTimestamp().getTime() >= since) {
+                    commit.appendLog(out);
+                    out.append('\n');
+                    printed++;
+                }
+            }
+            out.flush();
+        } catch (IOException excp) {
+            // Nobody reads the rest, e.g. the output was piped into head.
         }
     }
 
@@ -366,13 +516,23 @@ public class Repository {
      * If there are multiple such commits, it prints the ids out on separate lines.
      */
     public static void find(String message) {
-        List<String> allCommits = safeListFiles(COMMIT_DIR);
-        List<String> matchedCommits = allCommits.stream()
-                .map(Repository::getCommitFromID)
-                .filter(commit -> commit.getMessage().equals(message))
-                .map(Commit::getCommitID)
-                .collect(Collectors.toList());
+        List<String> matchedCommits = objectStore().findCommitsByMessage(message);
+        if (matchedCommits.isEmpty()) {
+            abort("Found no commit with that message.");
+        }
 
+        matchedCommits.forEach(System.out::println);
+    }
+
+    /**
+     * Prints out the ids of all commits whose message contains the given word,
+     * ignoring case and punctuation. A query of several words matches messages
+     * that contain all of them.
+     */
+    public static void findContaining(String word) {
+        Set<String> words = MessageIndex.words(word);
+        List<String> matchedCommits = words.isEmpty()
+                ? List.of() : objectStore().findCommitsByWords(words);
         if (matchedCommits.isEmpty()) {
             abort("Found no commit with that message.");
         }
@@ -399,21 +559,10 @@ public class Repository {
             abort("There is an untracked file in the way; delete it, or add and commit it first.");
         }
 
-        // Restore all files from the target commit.
-        Map<String, String> targetBlobs = targetCommit.getBlobs();
-        for (var entry : targetBlobs.entrySet()) {
-            String filename = entry.getKey();
-            String blobId = entry.getValue();
-            restoreFile(filename, blobId);
-        }
-
-        // Delete tracked files that are not present in that commit.
-        for (String filename : currentCommit.getBlobs().keySet()) {
-            if (!targetBlobs.containsKey(filename)) {
-                restrictedDelete(join(CWD, filename));
-            }
-        }
+        // Restore the files of the target commit, and delete tracked files that are not present in it.
+        switchFiles(currentCommit, targetCommit);
 
+        statIndex().save();
         Stage stage = readStage();
         stage.clear();
         writeStage(stage);
@@ -466,9 +615,9 @@ public class Repository {
         Commit splitCommit = getCommitFromID(splitPoint);
         Commit currentCommit = getCommitFromID(currentCommitID);
 
-        Map<String, String> splitBlobs = splitCommit.getBlobs();
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
-        Map<String, String> givenBlobs = givenCommit.getBlobs();
+        Map<String, String> splitBlobs = trackedFiles(splitCommit);
+        Map<String, String> currentBlobs = trackedFiles(currentCommit);
+        Map<String, String> givenBlobs = trackedFiles(givenCommit);
 
         Set<String> allFiles = new HashSet<>();
         allFiles.addAll(splitBlobs.keySet());
@@ -508,8 +657,7 @@ public class Repository {
             if (modifiedInGiven && !modifiedInCurrent) {
                 // The file has been deleted in given branch.
                 if (givenBlobId == null) {
-                    File file = Utils.join(CWD, filename);
-                    Utils.restrictedDelete(file);
+                    deleteWorkingFile(filename);
                     stage.stageForRemoval(filename);
                 } else {
                     restoreFile(filename, givenBlobId);
@@ -574,16 +722,13 @@ public class Repository {
         }
 
         writeStage(stage);
+        statIndex().save();
 
-        Map<String, String> newBlobs = new TreeMap<>(currentBlobs);
-        newBlobs.putAll(stage.getAdded());
-        for (String removed : stage.getRemoved()) {
-            newBlobs.remove(removed);
-        }
+        String tree = Tree.update(objectStore(), treeOf(currentCommit), stage.getAdded(), stage.getRemoved());
 
         String mergeMessage = String.format("Merged %s into %s.", branchName, getCurrentBranch());
-        Commit mergeCommit = new Commit(mergeMessage, currentCommitID, givenCommitID, newBlobs);
-        saveCommit(mergeCommit);
+        Commit mergeCommit = new Commit(mergeMessage, currentCommitID, givenCommitID, tree);
+        saveCommit(mergeCommit, changedPaths(stage));
 
         File currentBranchFile = join(HEADS_DIR, getCurrentBranch());
         writeContents(currentBranchFile, mergeCommit.getCommitID());
@@ -596,6 +741,26 @@ public class Repository {
         }
     }
 
+    /**
+     * Packs the object database.
+     * <p>
+     * Every loose commit and blob, along with any existing packs, is appended to a single packfile
+     * with a sorted index of object IDs, and the files it replaces are removed.
+     * Objects read the same way afterwards; only their location on disk changes.
+     * <p>
+     * First, the commits of every branch are added to the commit-graph, and those added
+     * without a changed-path filter, e.g. by fetch or push, get one.
+     */
+    public static void gc() {
+        CommitGraph graph = commitGraph();
+        for (String head : readBranches(GITLET_DIR).values()) {
+            graph.update(head);
+        }
+        // Before repacking, so that the trees built for commits made before trees existed are packed too.
+        graph.writeFilters(Repository::changedPaths);
+        objectStore().repack();
+    }
+
     /**
      * Saves the given login information under the given remote name.
      * Attempts to push or pull from the given remote name will then attempt to use this .gitlet directory.
@@ -638,23 +803,16 @@ public class Repository {
      * then simply add the branch to the remote Gitlet.
      */
     public static void push(String remoteName, String remoteBranchName) {
-        RemoteRepository remoteRepo = readRemotes();
-        File remoteGitletDir = remoteRepo.getRemoteGitletDir(remoteName);
-
-        if (!remoteGitletDir.exists()) {
-            abort("Remote directory not found.");
-        }
+        try (Transport remote = openRemote(remoteName)) {
+            String localHead = getCurrentCommitID();
+            String remoteHead = remote.branches().get(remoteBranchName);
 
-        String localHead = getCurrentCommitID();
-        String remoteHead = readBranchHead(remoteGitletDir, remoteBranchName);
+            if (remoteHead != null && !isAncestor(remoteHead, localHead)) {
+                abort("Please pull down remote changes before pushing.");
+            }
 
-        if (remoteHead != null && !isAncestor(remoteHead, localHead)) {
-            abort("Please pull down remote changes before pushing.");
+            remote.push(remoteBranchName, remoteHead, localHead);
         }
-
-        pushCommits(localHead, remoteHead, remoteGitletDir);
-
-        writeBranchHead(remoteGitletDir, remoteBranchName, localHead);
     }
 
     /**
@@ -668,30 +826,17 @@ public class Repository {
      * This branch is created in the local repository if it did not previously exist.
      */
     public static void fetch(String remoteName, String remoteBranchName) {
-        RemoteRepository remoteRepo = readRemotes();
-        File remoteGitletDir = remoteRepo.getRemoteGitletDir(remoteName);
-
-        if (!remoteGitletDir.exists()) {
-            abort("Remote directory not found.");
-        }
-
-        if (!hasBranchIn(remoteGitletDir, remoteBranchName)) {
-            abort("That remote does not have that branch.");
-        }
-
-        String remoteHead = readBranchHead(remoteGitletDir, remoteBranchName);
-
-        fetchCommits(remoteHead, remoteGitletDir);
-
-        String localRemoteBranchName = remoteName + "/" + remoteBranchName;
-        File localBranchFile = join(HEADS_DIR, localRemoteBranchName);
-        File parentDir = localBranchFile.getParentFile();
-        if (parentDir != null && !parentDir.exists()) {
-            if (!parentDir.mkdirs()) {
-                throw error("Failed to create directory: %s", parentDir);
+        String remoteHead;
+        try (Transport remote = openRemote(remoteName)) {
+            remoteHead = remote.branches().get(remoteBranchName);
+            if (remoteHead == null) {
+                abort("That remote does not have that branch.");
             }
+            remote.fetch(remoteHead);
         }
-        writeContents(localBranchFile, remoteHead);
+        commitGraph().update(remoteHead);
+
+        writeBranchHead(GITLET_DIR, remoteName + "/" + remoteBranchName, remoteHead);
     }
 
     /**
@@ -704,6 +849,32 @@ public class Repository {
         merge(localRemoteBranchName);
     }
 
+    /**
+     * Serves this repository to {@code gitlet://} remotes until the process is killed.
+     */
+    public static void daemon(String host, int port, boolean allowPush) {
+        new Daemon(GITLET_DIR, allowPush).serve(host, port);
+    }
+
+    /**
+     * Runs the commands of {@link Client}s in this repository until the process is killed.
+     */
+    public static void server() {
+        new Server(GITLET_DIR).serve();
+    }
+
+    /**
+     * Forgets what this process has cached of the repository: the object store, the commit graph,
+     * the stat index and the staging area. A {@link Server} calls it when another process changed
+     * the repository, or when a command stopped halfway.
+     */
+    static void forgetState() {
+        ObjectStore.evict(GITLET_DIR);
+        CommitGraph.evict(GITLET_DIR);
+        statIndex = null;
+        stage = null;
+    }
+
     /**
      * @return whether the repository is initialized.
      */
@@ -724,6 +895,12 @@ public class Repository {
         if (!BLOB_DIR.mkdirs()) {
             throw error("Failed to create blobs directory.");
         }
+        if (!TREE_DIR.mkdirs()) {
+            throw error("Failed to create trees directory.");
+        }
+        if (!PACK_DIR.mkdirs()) {
+            throw error("Failed to create pack directory.");
+        }
         if (!REFS_DIR.mkdirs()) {
             throw error("Failed to create refs directory.");
         }
@@ -766,11 +943,11 @@ public class Repository {
      */
     private static Commit getCommitFromID(String commitID) {
         String fullCommitID = resolveCommitID(commitID);
-        File commitFile = Utils.join(COMMIT_DIR, fullCommitID);
-        if (!commitFile.exists()) {
+        Commit commit = objectStore().readCommit(fullCommitID);
+        if (commit == null) {
             abort("No commit with that id exists.");
         }
-        return readObject(commitFile, Commit.class);
+        return commit;
     }
 
     /**
@@ -781,18 +958,8 @@ public class Repository {
             return commitID;
         }
 
-        List<String> allCommitIDs = safeListFiles(COMMIT_DIR);
-        if (allCommitIDs.isEmpty()) {
-            abort("No commit with that id exists.");
-        }
-
-        List<String> matches = new ArrayList<>();
-        for (String fullId : allCommitIDs) {
-            if (fullId.startsWith(commitID)) {
-                matches.add(fullId);
-            }
-        }
-
+        // Two matches are enough to tell that the ID is ambiguous.
+        List<String> matches = objectStore().findCommits(commitID, 2);
         if (matches.isEmpty()) {
             abort("No commit with that id exists.");
         }
@@ -806,51 +973,225 @@ public class Repository {
 
     private static void createInitialCommit() {
         Commit initCommit = new Commit();
-        saveCommit(initCommit);
+        saveCommit(initCommit, Set.of());
         File branch = join(HEADS_DIR, DEFAULT_BRANCH);
         Utils.writeContents(branch, initCommit.getCommitID());
         setCurrentBranch(DEFAULT_BRANCH);
     }
 
+    /**
+     * Returns the staging area, read on first use. Commands change it in place and then write it.
+     */
     private static Stage readStage() {
-        return readObject(STAGE_FILE, Stage.class);
+        if (stage == null) {
+            stage = Stage.read(STAGE_FILE, STAGE_JOURNAL_FILE);
+        }
+        return stage;
     }
 
     private static void writeStage(Stage stage) {
-        writeObject(STAGE_FILE, stage);
+        stage.write(STAGE_FILE, STAGE_JOURNAL_FILE);
+        Repository.stage = stage;
+        objectStore().upgradeFormat();
     }
 
     private static RemoteRepository readRemotes() {
         if (!REMOTES_FILE.exists()) {
             return new RemoteRepository();
         }
-        return readObject(REMOTES_FILE, RemoteRepository.class);
+        return RemoteRepository.decode(readContents(REMOTES_FILE));
     }
 
     private static void writeRemotes(RemoteRepository remoteRepository) {
-        writeObject(REMOTES_FILE, remoteRepository);
+        writeContents(REMOTES_FILE, (Object) remoteRepository.encode());
+        objectStore().upgradeFormat();
+    }
+
+    private static ObjectStore objectStore() {
+        return ObjectStore.open(GITLET_DIR);
     }
 
+    /**
+     * Returns the stat index of the working directory, read on first use.
+     * Commands that change it save it themselves.
+     */
+    private static StatIndex statIndex() {
+        if (statIndex == null) {
+            statIndex = StatIndex.read(GITLET_DIR);
+        }
+        return statIndex;
+    }
+
+    /**
+     * Restores the blob as the working file and records it in the stat index,
+     * so the file it just wrote is not hashed again.
+     */
     private static void restoreFile(String filename, String blobId) {
-        File blobFile = join(BLOB_DIR, blobId);
-        Blob blob = readObject(blobFile, Blob.class);
+        File file = join(CWD, filename);
+        createParentDirs(file);
+        objectStore().restoreBlob(blobId, file);
+        statIndex().record(filename, file, blobId);
+    }
+
+    /**
+     * Restores every file of FILES (path -> blob ID) as for {@link #restoreFile}, on a pool of
+     * at most {@link #jobs} writer threads. Directories are created up front, so the writers
+     * only ever create files, whichever directories they are in.
+     */
+    private static void restoreFiles(Map<String, String> files) {
+        ObjectStore store = objectStore();
+        List<Callable<File>> writers = new ArrayList<>();
+        for (var entry : files.entrySet()) {
+            File file = join(CWD, entry.getKey());
+            createParentDirs(file);
+            writers.add(() -> {
+                store.restoreBlob(entry.getValue(), file);
+                return file;
+            });
+        }
+        List<File> written = runAll(writers, jobs);
+
+        int i = 0;
+        for (var entry : files.entrySet()) {
+            statIndex().record(entry.getKey(), written.get(i++), entry.getValue());
+        }
+    }
+
+    private static CommitGraph commitGraph() {
+        return CommitGraph.open(GITLET_DIR);
+    }
+
+    /**
+     * Writes the commit and appends it to the commit-graph,
+     * along with CHANGED_PATHS, the paths it changed from its first parent.
+     */
+    private static void saveCommit(Commit commit, Collection<String> changedPaths) {
+        objectStore().writeCommit(commit);
+        commitGraph().update(commit.getCommitID(), changedPaths);
+    }
 
-        File targetFile = join(CWD, filename);
-        writeContents(targetFile, (Object) blob.getContent());
+    /**
+     * Returns the paths a commit of STAGE changes from the current commit. Only files that
+     * differ from the current commit are ever staged, so these are all the staged paths.
+     */
+    private static Collection<String> changedPaths(Stage stage) {
+        Set<String> paths = new HashSet<>(stage.getAdded().keySet());
+        paths.addAll(stage.getRemoved());
+        return paths;
     }
 
-    private static void saveCommit(Commit commit) {
-        File commitFile = Utils.join(COMMIT_DIR, commit.getCommitID());
-        writeObject(commitFile, commit);
+    /**
+     * Returns the paths the commit with the given ID changed from its first parent.
+     */
+    private static Collection<String> changedPaths(String commitID) {
+        Commit commit = getCommitFromID(commitID);
+        String parentTree = commit.getParent() == null ? null : treeOf(getCommitFromID(commit.getParent()));
+        return Tree.diff(objectStore(), parentTree, treeOf(commit)).keySet();
+    }
+
+    /**
+     * Returns whether the commit at POS in GRAPH changed the file at PATH from its first parent.
+     * Commits whose changed-path filter rules the file out are not read.
+     */
+    private static boolean changesFile(CommitGraph graph, int pos, String path) {
+        if (!graph.mayHaveChanged(pos, path)) {
+            return false;
+        }
+        int parent = graph.parent(pos);
+        String before = parent == CommitGraph.NONE ? null : trackedBlob(getCommitFromID(graph.id(parent)), path);
+        return !Objects.equals(before, trackedBlob(getCommitFromID(graph.id(pos)), path));
+    }
+
+    /**
+     * Returns the ID of the commit's root tree. A commit made before trees existed
+     * gets a tree built from its blob map, stored like any other.
+     */
+    private static String treeOf(Commit commit) {
+        if (commit.getTree() != null) {
+            return commit.getTree();
+        }
+        return Tree.update(objectStore(), null, commit.getBlobs(), Set.of());
+    }
+
+    /**
+     * Returns every file tracked by the commit: path -> blob ID.
+     */
+    private static Map<String, String> trackedFiles(Commit commit) {
+        if (commit.getTree() != null) {
+            return Tree.flatten(objectStore(), commit.getTree());
+        }
+        return commit.getBlobs();
+    }
+
+    /**
+     * Returns the blob ID of the file in the commit, or null if the commit does not track it.
+     */
+    private static String trackedBlob(Commit commit, String filename) {
+        if (commit.getTree() != null) {
+            return Tree.lookup(objectStore(), commit.getTree(), filename);
+        }
+        return commit.getBlobs().get(filename);
+    }
+
+    /**
+     * Returns a function from filename to the blob ID the commit tracks for it. For a few
+     * files it looks each up in the tree; for more, it flattens the tree once.
+     */
+    private static Function<String, String> trackedLookup(Commit commit, int count) {
+        if (count <= 1) {
+            return filename -> trackedBlob(commit, filename);
+        }
+        return trackedFiles(commit)::get;
+    }
+
+    /**
+     * Makes the working files hold the versions TARGET tracks, and deletes those CURRENT tracks
+     * and TARGET does not, writing only the files that differ. A file that changed between the
+     * two commits is written unless the stat index vouches that it already holds the new version.
+     * One that did not change is checked against the stat index, and hashed if its stat data
+     * changed, since it may have been edited. Subtrees the two commits share are not read
+     * for the diff.
+     */
+    private static void switchFiles(Commit current, Commit target) {
+        Map<String, String> changes = Tree.diff(objectStore(), treeOf(current), treeOf(target));
+        Map<String, String> targetFiles = trackedFiles(target);
+        StatIndex index = statIndex();
+        Map<String, String> differing = new TreeMap<>();
+        List<String> unchanged = new ArrayList<>();
+        for (var entry : targetFiles.entrySet()) {
+            String filename = entry.getKey();
+            File file = join(CWD, filename);
+            if (!file.isFile()) {
+                differing.put(filename, entry.getValue());
+            } else if (!changes.containsKey(filename)) {
+                unchanged.add(filename);
+            } else if (!entry.getValue().equals(index.get(filename, file))) {
+                differing.put(filename, entry.getValue());
+            }
+        }
+        Map<String, String> working = index.hashAll(unchanged, CWD, Blob::hash, jobs);
+        for (String filename : unchanged) {
+            if (!working.get(filename).equals(targetFiles.get(filename))) {
+                differing.put(filename, targetFiles.get(filename));
+            }
+        }
+        restoreFiles(differing);
+
+        for (var entry : changes.entrySet()) {
+            if (entry.getValue() == null) {
+                deleteWorkingFile(entry.getKey());
+                index.remove(entry.getKey());
+            }
+        }
     }
 
     private static boolean hasUntrackedFiles(Commit targetCommit) {
         Commit currentCommit = getCurrentCommit();
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
-        Map<String, String> targetBlobs = targetCommit.getBlobs();
+        Map<String, String> currentBlobs = trackedFiles(currentCommit);
+        Map<String, String> targetBlobs = trackedFiles(targetCommit);
         Stage stage = readStage();
 
-        List<String> workingFiles = safeListFiles(CWD);
+        List<String> workingFiles = workingFiles();
 
         for (String filename : workingFiles) {
             if (filename.startsWith(".gitlet")) continue;
@@ -866,11 +1207,6 @@ public class Repository {
         return false;
     }
 
-    private static Commit getParentCommit(Commit commit) {
-        String parentId = commit.getParent();
-        return parentId != null ? getCommitFromID(parentId) : null;
-    }
-
     private static void logBranches() {
         String currentBranch = getCurrentBranch();
         List<String> branches = safeListFiles(HEADS_DIR);
@@ -911,26 +1247,35 @@ public class Repository {
      */
     private static void logNotStageForCommit() {
         Commit currentCommit = getCurrentCommit();
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
+        Map<String, String> currentBlobs = trackedFiles(currentCommit);
         Stage stage = readStage();
         Map<String, String> stagedAdded = stage.getAdded();
         Set<String> stagedRemoved = stage.getRemoved();
-        List<String> workingFiles = safeListFiles(CWD);
+        List<String> workingFiles = workingFiles();
         Set<String> workingFileSet = new HashSet<>(workingFiles);
+        // Only files whose stat data changed since they were last hashed are read, in parallel.
+        Set<String> candidates = new HashSet<>(currentBlobs.keySet());
+        candidates.addAll(stagedAdded.keySet());
+        candidates.retainAll(workingFileSet);
+        StatIndex index = statIndex();
+        Map<String, String> workingBlobs = index.hashAll(candidates, CWD, Blob::hash, jobs);
 
         Set<String> modifiedFiles = new TreeSet<>();
 
-        // Case 1: Tracked in current commit, changed in working directory, but not staged
-        for (Map.Entry<String, String> entry : currentBlobs.entrySet()) {
+        // The tracked files in the working directory are compared with the current commit a directory
+        // at a time: a directory whose tree hash matches is skipped without looking at its files.
+        Map<String, String> trackedWorking = new TreeMap<>(workingBlobs);
+        trackedWorking.keySet().retainAll(currentBlobs.keySet());
+        Map<String, Tree> workingTrees = new HashMap<>();
+        Tree workingTree = Tree.build(trackedWorking, workingTrees);
+        Map<String, String> changed = Tree.diff(objectStore(), workingTrees,
+                treeOf(currentCommit), workingTree.getTreeID());
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
             String filename = entry.getKey();
-            String blobID = entry.getValue();
 
-            if (workingFileSet.contains(filename)) {
-                File file = join(CWD, filename);
-                byte[] content = readContents(file);
-                String currentBlobID = sha1((Object) content);
-
-                if (!currentBlobID.equals(blobID) && !stagedAdded.containsKey(filename)) {
+            if (entry.getValue() != null) {
+                // Case 1: Tracked in current commit, changed in working directory, but not staged
+                if (!stagedAdded.containsKey(filename)) {
                     modifiedFiles.add(filename + " (modified)");
                 }
             } else {
@@ -948,9 +1293,7 @@ public class Repository {
             String stagedBlobID = entry.getValue();
 
             if (workingFileSet.contains(filename)) {
-                File file = join(CWD, filename);
-                byte[] content = readContents(file);
-                String currentBlobID = sha1((Object) content);
+                String currentBlobID = workingBlobs.get(filename);
 
                 if (!currentBlobID.equals(stagedBlobID)) {
                     modifiedFiles.add(filename + " (modified)");
@@ -960,6 +1303,8 @@ public class Repository {
             }
         }
 
+        index.retainAll(workingFileSet);
+        index.save();
         modifiedFiles.forEach(System.out::println);
     }
 
@@ -970,11 +1315,11 @@ public class Repository {
      */
     private static void logUntrackedFiles() {
         Commit currentCommit = getCurrentCommit();
-        Map<String, String> currentBlobs = currentCommit.getBlobs();
+        Map<String, String> currentBlobs = trackedFiles(currentCommit);
         Stage stage = readStage();
         Map<String, String> stagedAdded = stage.getAdded();
         Set<String> stagedRemoved = stage.getRemoved();
-        List<String> workingFiles = safeListFiles(CWD);
+        List<String> workingFiles = workingFiles();
 
         Set<String> untrackedFiles = new TreeSet<>();
 
@@ -1004,39 +1349,145 @@ public class Repository {
     }
 
     /**
-     * The split point is the latest common ancestor of the current and given branch heads:
-     * <p>
-     * - A common ancestor is a commit to which there is a path (of 0 or more parent pointers) from both branch heads.
-     * <p>
-     * - The latest common ancestor is a common ancestor that is not an ancestor of any other common ancestor.
+     * Returns the paths of all files in the working directory, relative to it and using {@code /}
+     * between directories. Subdirectories are descended into, except .gitlet and symbolic links.
      */
-    private static String findSplitPoint(String currentCommitID, String givenCommitID) {
-        Map<String, Integer> currentDepths = getCommitDepths(currentCommitID);
-        Map<String, Integer> givenDepths = getCommitDepths(givenCommitID);
+    private static List<String> workingFiles() {
+        List<String> files = new ArrayList<>();
+        collectWorkingFiles(CWD, "", files);
+        return files;
+    }
 
-        // Find the common ancestor with minimum depth (most recent)
-        return currentDepths.keySet().stream()
-                .filter(givenDepths::containsKey)
-                .min(Comparator.comparingInt(currentDepths::get))
-                .orElse(null);
+    private static void collectWorkingFiles(File directory, String prefix, List<String> files) {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = join(directory, name);
+            if (prefix.isEmpty() && name.equals(".gitlet")) {
+                continue;
+            }
+            if (file.isFile()) {
+                files.add(prefix + name);
+            } else if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+                collectWorkingFiles(file, prefix + name + Tree.SEPARATOR, files);
+            }
+        }
     }
 
-    private static Map<String, Integer> getCommitDepths(String commitId) {
-        Map<String, Integer> depths = new HashMap<>();
-        collectDepths(commitId, 0, depths);
-        return depths;
+    /**
+     * Converts a path given on the command line to a path relative to the working directory,
+     * using {@code /} between directories, e.g. {@code ./src/../a.txt} becomes {@code a.txt}.
+     */
+    private static String toRepoPath(String filename) {
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        Path relative = root.relativize(root.resolve(filename).normalize());
+        return relative.toString().replace(File.separatorChar, '/');
     }
 
-    private static void collectDepths(String commitId, int depth, Map<String, Integer> depths) {
-        if (commitId == null || depths.containsKey(commitId)) {
-            return;
+    /**
+     * Returns the repository paths of FILENAMES. A filename that names no file but holds
+     * glob characters stands for the CANDIDATES it matches, in their order; one that matches
+     * none is kept as it is, for the command to report.
+     */
+    private static List<String> expandGlobs(List<String> filenames, Supplier<Collection<String>> candidates) {
+        Set<String> paths = new LinkedHashSet<>();
+        Collection<String> all = null;
+        for (String filename : filenames) {
+            String path = toRepoPath(filename);
+            if (join(CWD, path).exists() || !GLOB.matcher(filename).find()) {
+                paths.add(path);
+                continue;
+            }
+            if (all == null) {
+                all = candidates.get();
+            }
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+            boolean matched = false;
+            for (String candidate : all) {
+                if (matcher.matches(Path.of(candidate))) {
+                    paths.add(candidate);
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                paths.add(path);
+            }
         }
+        return new ArrayList<>(paths);
+    }
 
-        depths.put(commitId, depth);
-        Commit commit = getCommitFromID(commitId);
+    /**
+     * Deletes the working file at PATH, then every directory that leaves empty.
+     */
+    private static void deleteWorkingFile(String path) {
+        File file = join(CWD, path);
+        if (!file.isFile() || !file.delete()) {
+            return;
+        }
+        for (File dir = file.getParentFile(); !dir.equals(CWD) && dir.delete(); dir = dir.getParentFile()) {
+            // Keeps going while directories are empty.
+        }
+    }
 
-        collectDepths(commit.getParent(), depth + 1, depths);
-        collectDepths(commit.getSecondParent(), depth + 1, depths);
+    private static void createParentDirs(File file) {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw error("Failed to create directory: %s", parent);
+        }
+    }
+    /**
+     * The split point is the latest common ancestor of the current and given branch heads:
+     * <p>
+     * - A common ancestor is a commit to which there is a path (of 0 or more parent pointers) from both branch heads.
+     * <p>
+     * - The latest common ancestor is a common ancestor that is not an ancestor of any other common ancestor.
+     */
+    private static String findSplitPoint(String currentCommitID, String givenCommitID) {
+        CommitGraph graph = commitGraph();
+        int current = graph.indexOf(currentCommitID);
+        int given = graph.indexOf(givenCommitID);
+
+        // Paints ancestors of each side with its flag, newest generation first.
+        // A commit's flags are final by the time it is polled, since every commit between it
+        // and either head has a higher generation, so the first commit carrying both flags is
+        // the common ancestor with the highest generation and cannot be an ancestor of another one.
+        final int fromCurrent = 1;
+        final int fromGiven = 2;
+        Map<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> frontier = new PriorityQueue<>(
+                Comparator.comparingInt(graph::generation)
+                        .thenComparingLong(graph::timestamp)
+                        .thenComparingInt(pos -> pos)
+                        .reversed());
+        flags.merge(current, fromCurrent, (a, b) -> a | b);
+        flags.merge(given, fromGiven, (a, b) -> a | b);
+        frontier.add(current);
+        if (given != current) {
+            frontier.add(given);
+        }
+
+        while (!frontier.isEmpty()) {
+            int pos = frontier.poll();
+            int paint = flags.get(pos);
+            if (paint == (fromCurrent | fromGiven)) {
+                return graph.id(pos);
+            }
+            for (int parent : new int[]{graph.parent(pos), graph.secondParent(pos)}) {
+                if (parent == CommitGraph.NONE) {
+                    continue;
+                }
+                int old = flags.getOrDefault(parent, 0);
+                flags.put(parent, old | paint);
+                // A painted commit has not been polled yet, so it only needs queueing once.
+                if (old == 0) {
+                    frontier.add(parent);
+                }
+            }
+        }
+        return null;
     }
 
     private static void keepCurrent() {
@@ -1048,15 +1499,11 @@ public class Repository {
         String givenContent = "";
 
         if (currentBlobId != null) {
-            File blobFile = join(BLOB_DIR, currentBlobId);
-            Blob blob = readObject(blobFile, Blob.class);
-            currentContent = new String(blob.getContent());
+            currentContent = new String(objectStore().readBlob(currentBlobId));
         }
 
         if (givenBlobId != null) {
-            File blobFile = join(BLOB_DIR, givenBlobId);
-            Blob blob = readObject(blobFile, Blob.class);
-            givenContent = new String(blob.getContent());
+            givenContent = new String(objectStore().readBlob(givenBlobId));
         }
 
         String conflictContent = """
@@ -1066,178 +1513,67 @@ public class Repository {
                 """.formatted(currentContent, givenContent);
 
         File file = join(CWD, filename);
+        createParentDirs(file);
         writeContents(file, conflictContent);
 
         // Stage the conflict file
         Blob conflictBlob = new Blob(conflictContent.getBytes());
-        File conflictBlobFile = join(BLOB_DIR, conflictBlob.getBlobID());
-        writeObject(conflictBlobFile, conflictBlob);
+        objectStore().writeBlob(conflictBlob);
         stage.addFile(filename, conflictBlob.getBlobID());
+        statIndex().record(filename, file, conflictBlob.getBlobID());
     }
 
     // ==================== Remote Repository Helper Methods ====================
 
     /**
-     * Read branch head from specified gitlet directory
+     * Returns the branches of the specified gitlet directory, including the remote-tracking
+     * branches in subdirectories: branch name -> head commit ID.
      */
-    private static String readBranchHead(File gitletDir, String branchName) {
-        File branchFile = join(gitletDir, "refs", "heads", branchName);
-        if (!branchFile.exists()) {
-            return null;
-        }
-        return readContentsAsString(branchFile);
+    static Map<String, String> readBranches(File gitletDir) {
+        Path heads = join(gitletDir, "refs", "heads").toPath();
+        Map<String, String> branches = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(heads)) {
+            files.filter(Files::isRegularFile).forEach(path -> branches.put(
+                    heads.relativize(path).toString().replace(File.separatorChar, '/'),
+                    readContentsAsString(path.toFile())));
+        } catch (IOException excp) {
+            throw error("Failed to list branches of %s: %s", gitletDir, excp.getMessage());
+        }
+        return branches;
     }
 
     /**
      * Write branch head to specified gitlet directory
      */
-    private static void writeBranchHead(File gitletDir, String branchName, String commitID) {
+    static void writeBranchHead(File gitletDir, String branchName, String commitID) {
         File branchFile = join(gitletDir, "refs", "heads", branchName);
+        createParentDirs(branchFile);
         writeContents(branchFile, commitID);
     }
 
     /**
-     * Read commit from specified gitlet directory
-     */
-    private static Commit readCommitFrom(File gitletDir, String commitID) {
-        File commitFile = join(gitletDir, "objects", "commits", commitID);
-        return readObject(commitFile, Commit.class);
-    }
-
-    /**
-     * Write commit to specified gitlet directory
-     */
-    private static void writeCommitTo(File gitletDir, Commit commit) {
-        File commitFile = join(gitletDir, "objects", "commits", commit.getCommitID());
-        writeObject(commitFile, commit);
-    }
-
-    /**
-     * Read blob from specified gitlet directory
-     */
-    private static Blob readBlobFrom(File gitletDir, String blobID) {
-        File blobFile = join(gitletDir, "objects", "commits", "blobs", blobID);
-        return readObject(blobFile, Blob.class);
-    }
-
-    /**
-     * Write blob to specified gitlet directory
+     * Opens a connection to the repository of the named remote.
      */
-    private static void writeBlobTo(File gitletDir, Blob blob) {
-        File blobFile = join(gitletDir, "objects", "commits", "blobs", blob.getBlobID());
-        writeObject(blobFile, blob);
+    private static Transport openRemote(String remoteName) {
+        return Transport.open(readRemotes().getRemotePath(remoteName), GITLET_DIR);
     }
 
     /**
-     * Check if specified gitlet directory has a commit
+     * Returns whether ANCESTOR_ID is on the first-parent history of DESCENDANT_ID.
+     * The walk stops once generation numbers show the ancestor can no longer be reached.
      */
-    private static boolean hasCommitIn(File gitletDir, String commitID) {
-        File commitFile = join(gitletDir, "objects", "commits", commitID);
-        return commitFile.exists();
-    }
-
-    /**
-     * Check if specified gitlet directory has a blob
-     */
-    private static boolean hasBlobIn(File gitletDir, String blobID) {
-        File blobFile = join(gitletDir, "objects", "commits", "blobs", blobID);
-        return blobFile.exists();
-    }
-
-    /**
-     * Check if specified gitlet directory has a branch
-     */
-    private static boolean hasBranchIn(File gitletDir, String branchName) {
-        File branchFile = join(gitletDir, "refs", "heads", branchName);
-        return branchFile.exists();
-    }
-
-    private static void pushCommits(String localHead, String remoteHead, File remoteGitletDir) {
-        Set<String> visited = new HashSet<>();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(localHead);
-
-        while (!queue.isEmpty()) {
-            String commitID = queue.poll();
-
-            if (visited.contains(commitID)
-                    || (remoteHead != null && commitID.equals(remoteHead))
-                    || hasCommitIn(remoteGitletDir, commitID)) {
-                continue;
-            }
-            visited.add(commitID);
-
-            // Copy commit
-            Commit commit = getCommitFromID(commitID);
-            writeCommitTo(remoteGitletDir, commit);
-
-            // Copy blobs
-            for (String blobID : commit.getBlobs().values()) {
-                if (!hasBlobIn(remoteGitletDir, blobID)) {
-                    File localBlobFile = join(BLOB_DIR, blobID);
-                    Blob blob = readObject(localBlobFile, Blob.class);
-                    writeBlobTo(remoteGitletDir, blob);
-                }
-            }
-
-            // Add parent nodes
-            if (commit.getParent() != null) {
-                queue.add(commit.getParent());
-            }
-            if (commit.getSecondParent() != null) {
-                queue.add(commit.getSecondParent());
-            }
-        }
-    }
-
-    private static void fetchCommits(String remoteHead, File remoteGitletDir) {
-        Set<String> visited = new HashSet<>();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(remoteHead);
-
-        while (!queue.isEmpty()) {
-            String commitID = queue.poll();
-
-            File localCommitFile = join(COMMIT_DIR, commitID);
-            if (visited.contains(commitID) || localCommitFile.exists()) {
-                continue;
-            }
-            visited.add(commitID);
-
-            // Copy commit
-            Commit commit = readCommitFrom(remoteGitletDir, commitID);
-            writeObject(localCommitFile, commit);
-
-            // Copy blobs
-            for (String blobID : commit.getBlobs().values()) {
-                File localBlobFile = join(BLOB_DIR, blobID);
-                if (!localBlobFile.exists()) {
-                    Blob blob = readBlobFrom(remoteGitletDir, blobID);
-                    writeObject(localBlobFile, blob);
-                }
-            }
-
-            // Add parent nodes
-            if (commit.getParent() != null) {
-                queue.add(commit.getParent());
-            }
-            if (commit.getSecondParent() != null) {
-                queue.add(commit.getSecondParent());
-            }
-        }
-    }
-
     private static boolean isAncestor(String ancestorID, String descendantID) {
-        Commit current = getCommitFromID(descendantID);
-        while (current != null) {
-            if (current.getCommitID().equals(ancestorID)) {
+        if (!objectStore().hasCommit(ancestorID)) {
+            return false;
+        }
+        CommitGraph graph = commitGraph();
+        int ancestor = graph.indexOf(ancestorID);
+        for (int pos = graph.indexOf(descendantID);
+             pos != CommitGraph.NONE && graph.generation(pos) >= graph.generation(ancestor);
+             pos = graph.parent(pos)) {
+            if (pos == ancestor) {
                 return true;
             }
-            String parentID = current.getParent();
-            if (parentID == null) {
-                break;
-            }
-            current = getCommitFromID(parentID);
         }
         return false;
     }
@@ -0,0 +1,266 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static gitlet.Utils.*;
+
+/**
+ * Runs gitlet commands for {@link Client}s in one repository, so that they skip starting a JVM
+ * and find the object store, the commit graph, the stat index and the staging area already loaded.
+ * <p>
+ * It listens on the Unix-domain socket {@link #SOCKET} of the repository and runs one command per
+ * connection, one connection at a time. The client sends {@code count | (length | UTF-8 bytes)...},
+ * the arguments of the command. The server answers with frames of {@code type | length | bytes}:
+ * {@link #STDOUT} and {@link #STDERR} carry what the command prints, and {@link #EXIT} ends the
+ * answer, with the exit status in place of the length. A client whose standard output is closed
+ * sends {@link #STDOUT_CLOSED}, after which the command's writes to standard output fail as they
+ * would on a broken pipe.
+ * <p>
+ * Before each command, the server compares the files its caches depend on with how it left them,
+ * and forgets the caches if another process changed them. It also forgets them after a command
+ * that failed or aborted, which may have stopped with the staging area changed but not written.
+ *
+ * @author huang.kai
+ */
+class Server {
+    /**
+     * The socket of the server, relative to the working directory.
+     */
+    static final String SOCKET = ".gitlet/server.sock";
+
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+    static final byte STDOUT_CLOSED = 1;
+
+    /**
+     * The files and directories of .gitlet the cached state depends on.
+     */
+    private static final String[] WATCHED = {
+        "objects/pack", "objects/commit-graph", "objects/commit-graph-lookup", "objects/commit-ids",
+        "objects/messages",
+        "config", "index", "stage", "stage-journal",
+    };
+
+    private final File gitletDir;
+    private final Path socket = Path.of(SOCKET);
+    private List<String> stamp;
+
+    Server(File gitletDir) {
+        this.gitletDir = gitletDir;
+    }
+
+    /**
+     * Serves clients until the process is killed, removing the socket on the way out.
+     */
+    void serve() {
+        if (isRunning()) {
+            abort("A server is already running in this repository.");
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // A socket left by a server that was killed outright.
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> socket.toFile().delete()));
+            System.out.println("Listening on " + SOCKET);
+            System.out.flush();
+            while (true) {
+                try (SocketChannel channel = server.accept()) {
+                    handle(channel);
+                } catch (IOException excp) {
+                    System.err.println("gitlet server: " + excp.getMessage());
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Failed to serve on %s: %s", SOCKET, excp.getMessage());
+        }
+    }
+
+    private boolean isRunning() {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the command of one client, sending back its output and exit status.
+     */
+    private void handle(SocketChannel channel) throws IOException {
+        String[] args = readArgs(channel);
+        if (args == null) {
+            return;
+        }
+        AtomicBoolean stdoutClosed = new AtomicBoolean();
+        Thread watcher = new Thread(() -> watch(channel, stdoutClosed), "gitlet-server-client");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        if (!stamp().equals(stamp)) {
+            Repository.forgetState();
+        }
+        OutputStream stdout = new FrameStream(channel, STDOUT, stdoutClosed);
+        PrintStream out = new PrintStream(new BufferedOutputStream(stdout, 128), true);
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FrameStream(channel, STDERR, null), 128), true);
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        System.setOut(out);
+        System.setErr(err);
+        OutputStream rawStdout = setStdout(stdout);
+        int status = 0;
+        boolean completed = false;
+        try {
+            Main.run(args);
+            completed = true;
+        } catch (Abort excp) {
+            status = 0;
+        } catch (Throwable excp) {
+            // As the JVM reports an exception that escapes main.
+            err.print("Exception in thread \"main\" ");
+            excp.printStackTrace(err);
+            status = 1;
+        } finally {
+            out.flush();
+            err.flush();
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+            setStdout(rawStdout);
+        }
+        if (!completed) {
+            Repository.forgetState();
+        }
+        stamp = stamp();
+        writeFrame(channel, EXIT, status, null, 0);
+    }
+
+    /**
+     * Waits for the client to report that its standard output is closed, until the connection is.
+     */
+    private static void watch(SocketChannel channel, AtomicBoolean stdoutClosed) {
+        ByteBuffer signal = ByteBuffer.allocate(1);
+        try {
+            while (channel.read(signal.clear()) > 0) {
+                if (signal.get(0) == STDOUT_CLOSED) {
+                    stdoutClosed.set(true);
+                }
+            }
+        } catch (IOException excp) {
+            // The command is over, or the client is gone; either way there is nothing to watch.
+        }
+    }
+
+    /**
+     * Reads the arguments of a command, or returns null if the client closed without sending any,
+     * as one checking for a running server does.
+     */
+    private static String[] readArgs(SocketChannel channel) throws IOException {
+        ByteBuffer countBuffer = ByteBuffer.allocate(4);
+        if (channel.read(countBuffer) < 0) {
+            return null;
+        }
+        int count = readFully(channel, countBuffer).getInt();
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = readFully(channel, ByteBuffer.allocate(4)).getInt();
+            args[i] = new String(readFully(channel, ByteBuffer.allocate(length)).array(), StandardCharsets.UTF_8);
+        }
+        return args;
+    }
+
+    /**
+     * Fills BUFFER from CHANNEL and returns it flipped for reading.
+     */
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a frame of TYPE carrying LENGTH, followed by that many bytes of DATA unless DATA is null.
+     */
+    private static void writeFrame(SocketChannel channel, byte type, int length, byte[] data, int offset)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5).put(type).putInt(length).flip();
+        ByteBuffer[] frame = data == null
+                ? new ByteBuffer[]{header}
+                : new ByteBuffer[]{header, ByteBuffer.wrap(data, offset, length)};
+        while (frame[frame.length - 1].hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Returns the time and size of each watched file, to tell whether another process changed it.
+     */
+    private List<String> stamp() {
+        List<String> stamp = new ArrayList<>(WATCHED.length);
+        for (String name : WATCHED) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(
+                        join(gitletDir, name).toPath(), BasicFileAttributes.class);
+                stamp.add(attributes.lastModifiedTime() + " " + attributes.size());
+            } catch (NoSuchFileException excp) {
+                stamp.add("-");
+            } catch (IOException excp) {
+                // Unknown, so different from any earlier stamp.
+                stamp.add(excp.toString() + System.nanoTime());
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * The standard output or error of a command, written as frames to its client.
+     * Once the client's standard output is closed, writes to it fail as on a broken pipe.
+     */
+    private static class FrameStream extends OutputStream {
+        private final SocketChannel channel;
+        private final byte type;
+        private final AtomicBoolean closed;
+
+        FrameStream(SocketChannel channel, byte type, AtomicBoolean closed) {
+            this.channel = channel;
+            this.type = type;
+            this.closed = closed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed != null && closed.get()) {
+                throw new IOException("Broken pipe");
+            }
+            if (len > 0) {
+                writeFrame(channel, type, len, b, off);
+            }
+        }
+    }
+}
@@ -1,15 +1,65 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
+import static gitlet.Utils.*;
+
 /**
  * Represents the staging area.
+ * <p>
+ * It is saved as a snapshot, in the binary form of {@link Codec}, and a journal of the
+ * changes made since: {@code "GL" | type | version | generation}, then one record per change,
+ * an operation byte followed by the filename and, for {@link #ADD}, the blob ID. Staging one
+ * file appends one record, and reading replays the journal over the snapshot. Once the
+ * journal outgrows the snapshot, or the staging area is cleared, the snapshot is rewritten
+ * and the journal deleted.
+ * <p>
+ * Each snapshot ends with a generation, one more than that of the snapshot it replaces, and a
+ * journal only applies to the snapshot of its generation. The snapshot is renamed into place
+ * before the journal is deleted, so a crash in between leaves a journal that is skipped, rather
+ * than one that brings back files the new snapshot no longer stages. A record cut short by a
+ * crash is ignored, and overwritten by the next one, and a journal cut short within its header
+ * is empty.
  */
 public class Stage implements Serializable {
+    /**
+     * Pinned to the value of the original class, so that a Java-serialized staging area
+     * left by an older version still reads.
+     */
+    private static final long serialVersionUID = -8187480917472586491L;
+
+    private static final byte ADD = 1;
+    private static final byte UNSTAGE = 2;
+    private static final byte REMOVE = 3;
+    private static final byte RESET = 4;
+
+    /**
+     * Size in bytes up to which the journal may grow even past the snapshot.
+     */
+    private static final int MIN_COMPACT_SIZE = 1 << 16;
+
+    /**
+     * Sizes in bytes of the {@link Codec} header, and of the journal header, which adds the generation.
+     */
+    private static final int CODEC_HEADER_SIZE = 4;
+    private static final int JOURNAL_HEADER_SIZE = CODEC_HEADER_SIZE + Long.BYTES;
+
     /**
      * Files staged for addition: filename -> blob ID
      */
@@ -20,31 +70,62 @@ public class Stage implements Serializable {
      */
     private Set<String> removed;
 
+    /**
+     * Records of the changes not yet written, see {@link #write}.
+     */
+    private transient ByteArrayOutputStream changes;
+
+    /**
+     * Whether {@link #write} must rewrite the snapshot instead of appending to the journal.
+     */
+    private transient boolean compact;
+
+    /**
+     * Sizes in bytes of the snapshot and of the intact part of the journal, as last read or written.
+     */
+    private transient long snapshotSize;
+    private transient long journalSize;
+
+    /**
+     * Generation of the snapshot as last read or written, 0 for one saved without.
+     */
+    private transient long generation;
+
     public Stage() {
         added = new TreeMap<>();
         removed = new TreeSet<>();
+        compact = true;
     }
 
     public Map<String, String> getAdded() {
-        return added;
+        return Collections.unmodifiableMap(added);
     }
 
     public Set<String> getRemoved() {
-        return removed;
+        return Collections.unmodifiableSet(removed);
     }
 
     public void addFile(String filename, String blobID) {
-        added.put(filename, blobID);
-        removed.remove(filename);
+        apply(ADD, filename, blobID);
+        record(ADD, filename, blobID);
     }
 
     public void unstageFile(String filename) {
-        added.remove(filename);
+        apply(UNSTAGE, filename, null);
+        record(UNSTAGE, filename, null);
     }
 
     public void stageForRemoval(String filename) {
-        added.remove(filename);
-        removed.add(filename);
+        apply(REMOVE, filename, null);
+        record(REMOVE, filename, null);
+    }
+
+    /**
+     * Neither adds nor removes the file any more.
+     */
+    public void resetFile(String filename) {
+        apply(RESET, filename, null);
+        record(RESET, filename, null);
     }
 
     public boolean isClean() {
@@ -54,5 +135,183 @@ public class Stage implements Serializable {
     public void clear() {
         added.clear();
         removed.clear();
+        changes = null;
+        compact = true;
+    }
+
+    private void apply(byte operation, String filename, String blobID) {
+        switch (operation) {
+            case ADD:
+                added.put(filename, blobID);
+                removed.remove(filename);
+                break;
+            case UNSTAGE:
+                added.remove(filename);
+                break;
+            case REMOVE:
+                added.remove(filename);
+                removed.add(filename);
+                break;
+            case RESET:
+                added.remove(filename);
+                removed.remove(filename);
+                break;
+            default:
+                throw error("Corrupt stage journal.");
+        }
+    }
+
+    private void record(byte operation, String filename, String blobID) {
+        if (changes == null) {
+            changes = new ByteArrayOutputStream();
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(changes);
+            out.writeByte(operation);
+            Codec.writeString(out, filename);
+            if (operation == ADD) {
+                Codec.writeID(out, blobID);
+            }
+        } catch (IOException excp) {
+            throw error("Failed to encode stage change: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads the staging area saved as the snapshot FILE and the journal JOURNAL.
+     */
+    static Stage read(File file, File journal) {
+        byte[] snapshot = readContents(file);
+        Stage stage = decode(snapshot);
+        stage.snapshotSize = snapshot.length;
+        if (journal.isFile()) {
+            stage.replay(readContents(journal));
+        }
+        stage.compact = false;
+        stage.changes = null;
+        return stage;
+    }
+
+    /**
+     * Saves the changes made since the staging area was read or last written, appending
+     * them to JOURNAL or, when it is time to compact, rewriting FILE and deleting JOURNAL.
+     */
+    void write(File file, File journal) {
+        long pending = changes == null ? 0 : changes.size();
+        if (compact || journalSize + pending > Math.max(MIN_COMPACT_SIZE, snapshotSize)) {
+            generation++;
+            byte[] snapshot = encode();
+            writeSnapshot(file, snapshot);
+            if (journal.exists() && !journal.delete()) {
+                throw error("Failed to delete %s", journal);
+            }
+            snapshotSize = snapshot.length;
+            journalSize = 0;
+        } else if (pending > 0) {
+            append(journal);
+        }
+        changes = null;
+        compact = false;
+    }
+
+    /**
+     * Replaces FILE with SNAPSHOT all at once, so that a crash leaves either the old or the new one.
+     */
+    private static void writeSnapshot(File file, byte[] snapshot) {
+        try {
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), "tmp-", null);
+            Files.write(tmp, snapshot);
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+    }
+
+    private void append(File journal) {
+        try (FileChannel channel = FileChannel.open(journal.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drops a record cut short by a crash, if any.
+            channel.truncate(journalSize);
+            channel.position(journalSize);
+            if (journalSize == 0) {
+                writeFully(channel, Codec.encode(Codec.STAGE_JOURNAL, out -> out.writeLong(generation)));
+            }
+            writeFully(channel, changes.toByteArray());
+            journalSize = channel.position();
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", journal, excp.getMessage());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Applies the records of the journal saved as BYTES, up to the first one cut short,
+     * unless the journal belongs to a snapshot of another generation.
+     */
+    private void replay(byte[] bytes) {
+        if (bytes.length < JOURNAL_HEADER_SIZE) {
+            // Cut short within its header: nothing to replay, and rewritten on the next append.
+            return;
+        }
+        Codec.decode(bytes, Codec.STAGE_JOURNAL, Stage.class, (in, version) -> {
+            if (in.readLong() != generation) {
+                return this;
+            }
+            journalSize = bytes.length - in.available();
+            for (int operation = in.read(); operation >= 0; operation = in.read()) {
+                try {
+                    String filename = Codec.readString(in);
+                    apply((byte) operation, filename, operation == ADD ? Codec.readID(in) : null);
+                } catch (EOFException excp) {
+                    break;
+                }
+                journalSize = bytes.length - in.available();
+            }
+            return this;
+        });
+    }
+
+    /**
+     * Returns the bytes the staging area is saved as, in the binary form of {@link Codec}.
+     */
+    byte[] encode() {
+        return Codec.encode(Codec.STAGE, out -> {
+            out.writeInt(added.size());
+            for (Map.Entry<String, String> entry : added.entrySet()) {
+                Codec.writeString(out, entry.getKey());
+                Codec.writeID(out, entry.getValue());
+            }
+            out.writeInt(removed.size());
+            for (String filename : removed) {
+                Codec.writeString(out, filename);
+            }
+            out.writeLong(generation);
+        });
+    }
+
+    /**
+     * Returns the staging area saved as BYTES, in the binary form or Java-serialized.
+     */
+    static Stage decode(byte[] bytes) {
+        return Codec.decode(bytes, Codec.STAGE, Stage.class, (in, version) -> {
+            Stage stage = new Stage();
+            for (int n = in.readInt(); n > 0; n--) {
+                stage.added.put(Codec.readString(in), Codec.readID(in));
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                stage.removed.add(Codec.readString(in));
+            }
+            if (in.available() >= Long.BYTES) {
+                stage.generation = in.readLong();
+            }
+            return stage;
+        });
     }
 }
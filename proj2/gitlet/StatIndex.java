@@ -0,0 +1,309 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents the stat index of a working directory, stored in {@code .gitlet/index}.
+ * <p>
+ * For every path it has hashed, the index remembers the size, modification time and inode
+ * the file had, together with the blob ID of its content. As long as a file's stat data
+ * is unchanged its cached blob ID is trusted, so {@code status} and {@code add} only
+ * read the files that were actually touched.
+ * <p>
+ * Layout: {@code "DIRC" | version | count}, followed by one entry per path, sorted by path,
+ * {@code path (UTF) | size | mtime (ns) | inode | blob ID (20 bytes)}.
+ * <p>
+ * A file modified in the same clock tick as the index is written could keep its stat data,
+ * so such "racily clean" entries are saved with an impossible size and rehashed next time.
+ *
+ * @author huang.kai
+ */
+class StatIndex {
+    private static final int MAGIC = 0x44495243;
+    private static final int VERSION = 1;
+
+    /**
+     * Size stored for entries that must be rehashed before they are trusted again.
+     */
+    private static final long SMUDGED = -1;
+
+    private static final boolean UNIX_ATTRIBUTES =
+            FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private final File file;
+
+    /**
+     * Maps path to the stat data and blob ID recorded for it.
+     */
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    private boolean dirty;
+
+    private StatIndex(File file) {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // An unreadable index only costs a rehash; start over.
+                dirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Stat stat = new Stat(in.readLong(), in.readLong(), in.readLong());
+                byte[] id = new byte[UID_LENGTH / 2];
+                in.readFully(id);
+                entries.put(path, new Entry(stat, PackFile.toHex(id)));
+            }
+        } catch (EOFException excp) {
+            entries.clear();
+            dirty = true;
+        } catch (IOException excp) {
+            throw error("Failed to read %s: %s", file, excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads the stat index of the given .gitlet directory, which is empty if none was saved yet.
+     */
+    static StatIndex read(File gitletDir) {
+        return new StatIndex(join(gitletDir, "index"));
+    }
+
+    /**
+     * Returns the blob ID recorded for PATH if FILE still has the recorded stat data, otherwise null.
+     */
+    String get(String path, File file) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        Stat stat = Stat.of(file);
+        return entry.stat.equals(stat) ? entry.blobID : null;
+    }
+
+    /**
+     * Computes the blob ID of FILE with HASHER and records it for PATH.
+     * The file is stat'ed first, so a change made while it is read is noticed next time.
+     */
+    String hash(String path, File file, Function<File, String> hasher) {
+        Stat stat = Stat.of(file);
+        String blobID = hasher.apply(file);
+        put(path, stat, blobID);
+        return blobID;
+    }
+
+    /**
+     * Returns the blob IDs of the files PATHS under DIR, sorted by path, as for
+     * {@link #hash(String, File, Function)}. Files whose stat data is unchanged come from the index;
+     * the rest are hashed by HASHER on a pool of at most JOBS threads.
+     */
+    Map<String, String> hashAll(Collection<String> paths, File dir,
+                                Function<File, String> hasher, int jobs) {
+        Map<String, String> result = new TreeMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String path : paths) {
+            String blobID = get(path, join(dir, path));
+            if (blobID != null) {
+                result.put(path, blobID);
+            } else {
+                stale.add(path);
+            }
+        }
+
+        List<Callable<Entry>> tasks = new ArrayList<>();
+        for (String path : stale) {
+            File file = join(dir, path);
+            tasks.add(() -> {
+                Stat stat = Stat.of(file);
+                return new Entry(stat, hasher.apply(file));
+            });
+        }
+        List<Entry> hashed = runAll(tasks, jobs);
+        // The index itself is only touched from this thread.
+        for (int i = 0; i < stale.size(); i++) {
+            Entry entry = hashed.get(i);
+            put(stale.get(i), entry.stat, entry.blobID);
+            result.put(stale.get(i), entry.blobID);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the blob IDs of the files PATHS under DIR, computed all at once by HASHER, which
+     * returns them in the order of the files it is given, and records them. Every file is
+     * stat'ed before HASHER reads it.
+     */
+    Map<String, String> hashBatch(List<String> paths, File dir, Function<List<File>, List<String>> hasher) {
+        List<File> files = new ArrayList<>(paths.size());
+        List<Stat> stats = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            File file = join(dir, path);
+            files.add(file);
+            stats.add(Stat.of(file));
+        }
+        List<String> blobIDs = hasher.apply(files);
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            put(paths.get(i), stats.get(i), blobIDs.get(i));
+            result.put(paths.get(i), blobIDs.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Records that FILE, as it is now, holds the blob ID, e.g. right after it was restored.
+     */
+    void record(String path, File file, String blobID) {
+        put(path, Stat.of(file), blobID);
+    }
+
+    void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets every path not in PATHS, so that deleted files do not linger in the index.
+     */
+    void retainAll(Collection<String> paths) {
+        if (entries.keySet().retainAll(paths)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the index back to disk if it changed.
+     */
+    void save() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(file.getParentFile().toPath(), "tmp-", null);
+            // Anything modified no earlier than the index itself may still change unnoticed.
+            long writtenAt = Files.getLastModifiedTime(tmp).to(TimeUnit.NANOSECONDS);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Stat stat = e.getValue().stat;
+                    if (stat.mtime >= writtenAt && stat.size != SMUDGED) {
+                        // Smudged in memory too, for a process such as the server that keeps the index.
+                        stat = new Stat(SMUDGED, stat.mtime, stat.inode);
+                        e.setValue(new Entry(stat, e.getValue().blobID));
+                    }
+                    out.writeUTF(e.getKey());
+                    out.writeLong(stat.size);
+                    out.writeLong(stat.mtime);
+                    out.writeLong(stat.inode);
+                    out.write(PackFile.toBytes(e.getValue().blobID));
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw error("Failed to write %s: %s", file, excp.getMessage());
+        }
+        dirty = false;
+    }
+
+    private void put(String path, Stat stat, String blobID) {
+        if (stat == null || PackFile.toBytes(blobID) == null) {
+            remove(path);
+            return;
+        }
+        Entry old = entries.put(path, new Entry(stat, blobID));
+        if (old == null || !old.stat.equals(stat) || !old.blobID.equals(blobID)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * The stat data of a file that, when unchanged, means its content is unchanged.
+     */
+    private static class Stat {
+        private final long size;
+        private final long mtime;
+        private final long inode;
+
+        Stat(long size, long mtime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        /**
+         * Returns the stat data of FILE, or null if it cannot be read.
+         */
+        static Stat of(File file) {
+            Path path = file.toPath();
+            try {
+                if (UNIX_ATTRIBUTES) {
+                    Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+                    return new Stat((Long) attrs.get("size"),
+                            ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                            (Long) attrs.get("ino"));
+                }
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Stat(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0);
+            } catch (IOException | UnsupportedOperationException excp) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stat)) {
+                return false;
+            }
+            Stat other = (Stat) o;
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(mtime);
+        }
+    }
+
+    private static class Entry {
+        private final Stat stat;
+        private final String blobID;
+
+        Entry(Stat stat, String blobID) {
+            this.stat = stat;
+            this.blobID = blobID;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package gitlet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents a connection from the local repository to the repository of a remote,
+ * through which {@code push} and {@code fetch} exchange commits.
+ * <p>
+ * A remote is either the path of another .gitlet directory, reached by {@link LocalTransport},
+ * or a {@code gitlet://host:port/} URL of a {@link Daemon}, reached by {@link DaemonTransport}.
+ * Either way, the side receiving commits only tells the other its branch heads,
+ * and the sender answers with a single pack of what is missing.
+ *
+ * @author huang.kai
+ */
+interface Transport extends Closeable {
+    /**
+     * Scheme of the URLs of remotes served by a {@link Daemon}.
+     */
+    String URL_SCHEME = "gitlet://";
+
+    /**
+     * Returns the branches of the remote repository: branch name -> head commit ID.
+     */
+    Map<String, String> branches();
+
+    /**
+     * Brings the remote commit WANT into the local repository, with every ancestor,
+     * tree and blob of it the local repository lacks.
+     */
+    void fetch(String want);
+
+    /**
+     * Sends the local commit HEAD to the remote repository, with every ancestor, tree and blob
+     * of it the remote lacks, then moves the remote BRANCH from OLDHEAD, or null for a new branch, to HEAD.
+     */
+    void push(String branch, String oldHead, String head);
+
+    @Override
+    void close();
+
+    /**
+     * Opens a connection from the repository LOCALGITLETDIR to the remote at REMOTEPATH.
+     */
+    static Transport open(String remotePath, File localGitletDir) {
+        if (remotePath.startsWith(URL_SCHEME)) {
+            return DaemonTransport.connect(remotePath, localGitletDir);
+        }
+        File remoteGitletDir = new File(remotePath);
+        if (!remoteGitletDir.exists()) {
+            abort("Remote directory not found.");
+        }
+        return new LocalTransport(localGitletDir, remoteGitletDir);
+    }
+}
@@ -0,0 +1,325 @@
+package gitlet;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Represents a tree object: one directory of a commit's snapshot.
+ * <p>
+ * A tree maps the names of the files in its directory to blob IDs and the names of its
+ * subdirectories to tree IDs. Its ID is the SHA-1 of a canonical listing of those entries,
+ * so identical directories are stored once and shared by every commit that contains them,
+ * and two snapshots can be compared one directory at a time, skipping equal subtrees.
+ * <p>
+ * Paths passed to the static helpers are relative to the root tree and use {@code /}
+ * between directories.
+ *
+ * @author huang.kai
+ */
+public class Tree implements Serializable {
+    private static final long serialVersionUID = 2413066283316925375L;
+
+    /**
+     * Separator between the directories of a path.
+     */
+    static final String SEPARATOR = "/";
+
+    /**
+     * The tree of a snapshot without files, such as the initial commit. It is never stored.
+     */
+    static final Tree EMPTY = new Tree(Map.of(), Map.of());
+
+    /**
+     * Files of this directory: name -> blob ID.
+     */
+    private final Map<String, String> blobs;
+
+    /**
+     * Subdirectories of this directory: name -> tree ID.
+     */
+    private final Map<String, String> trees;
+
+    /**
+     * The ID of the tree.
+     */
+    private final String treeID;
+
+    public Tree(Map<String, String> blobs, Map<String, String> trees) {
+        this.blobs = new TreeMap<>(blobs);
+        this.trees = new TreeMap<>(trees);
+        this.treeID = generateID();
+    }
+
+    public String getTreeID() {
+        return treeID;
+    }
+
+    public Map<String, String> getBlobs() {
+        return Collections.unmodifiableMap(blobs);
+    }
+
+    public Map<String, String> getTrees() {
+        return Collections.unmodifiableMap(trees);
+    }
+
+    public boolean isEmpty() {
+        return blobs.isEmpty() && trees.isEmpty();
+    }
+
+    /**
+     * Returns roughly how many bytes the tree takes in memory, for caches.
+     */
+    long weight() {
+        return 128 + 160L * (blobs.size() + trees.size());
+    }
+
+    /**
+     * Returns every file of the tree with the given ID: path -> blob ID, sorted by path.
+     */
+    static Map<String, String> flatten(ObjectStore store, String treeID) {
+        Map<String, String> files = new TreeMap<>();
+        flatten(id -> read(store, id), treeID, "", files);
+        return files;
+    }
+
+    private static void flatten(Function<String, Tree> reader, String treeID, String prefix,
+                                Map<String, String> files) {
+        Tree tree = reader.apply(treeID);
+        for (Map.Entry<String, String> entry : tree.blobs.entrySet()) {
+            files.put(prefix + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : tree.trees.entrySet()) {
+            flatten(reader, entry.getValue(), prefix + entry.getKey() + SEPARATOR, files);
+        }
+    }
+
+    /**
+     * Builds, without storing them, the trees of the snapshot FILES (path -> blob ID),
+     * adds each of them to TREES by ID and returns the root.
+     */
+    static Tree build(Map<String, String> files, Map<String, Tree> trees) {
+        Map<String, String> blobs = new TreeMap<>();
+        Map<String, Map<String, String>> children = new TreeMap<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            String path = entry.getKey();
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                blobs.put(path, entry.getValue());
+            } else {
+                children.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), entry.getValue());
+            }
+        }
+        Map<String, String> subtrees = new TreeMap<>();
+        for (Map.Entry<String, Map<String, String>> entry : children.entrySet()) {
+            subtrees.put(entry.getKey(), build(entry.getValue(), trees).getTreeID());
+        }
+        Tree tree = new Tree(blobs, subtrees);
+        trees.put(tree.getTreeID(), tree);
+        return tree;
+    }
+
+    /**
+     * Returns the blob ID of PATH in the tree with the given ID, or null if it has no such file.
+     * Only the trees along the path are read.
+     */
+    static String lookup(ObjectStore store, String treeID, String path) {
+        String[] names = path.split(SEPARATOR);
+        Tree tree = read(store, treeID);
+        for (int i = 0; i < names.length - 1; i++) {
+            String subtreeID = tree.trees.get(names[i]);
+            if (subtreeID == null) {
+                return null;
+            }
+            tree = read(store, subtreeID);
+        }
+        return tree.blobs.get(names[names.length - 1]);
+    }
+
+    /**
+     * Writes the tree that results from applying ADDED (path -> blob ID) and REMOVED paths
+     * to the tree with the given ID, or to an empty tree if it is null, and returns its ID.
+     * Only the directories that contain a change are rebuilt; every other subtree keeps its ID,
+     * and directories left empty are dropped.
+     */
+    static String update(ObjectStore store, String treeID, Map<String, String> added,
+                         Collection<String> removed) {
+        return update(store, treeID, new TreeMap<>(added), new TreeSet<>(removed)).getTreeID();
+    }
+
+    private static Tree update(ObjectStore store, String treeID, TreeMap<String, String> added,
+                               TreeSet<String> removed) {
+        Tree base = treeID == null ? null : read(store, treeID);
+        if (added.isEmpty() && removed.isEmpty() && base != null) {
+            return base;
+        }
+        Map<String, String> blobs = base == null ? new TreeMap<>() : new TreeMap<>(base.blobs);
+        Map<String, String> trees = base == null ? new TreeMap<>() : new TreeMap<>(base.trees);
+
+        // Splits the changes into those of this directory and those of each subdirectory.
+        Map<String, TreeMap<String, String>> childAdded = new TreeMap<>();
+        Map<String, TreeSet<String>> childRemoved = new TreeMap<>();
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            String path = entry.getKey();
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                blobs.put(path, entry.getValue());
+            } else {
+                childAdded.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), entry.getValue());
+            }
+        }
+        for (String path : removed) {
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                blobs.remove(path);
+            } else {
+                childRemoved.computeIfAbsent(path.substring(0, slash), k -> new TreeSet<>())
+                        .add(path.substring(slash + 1));
+            }
+        }
+
+        TreeSet<String> changedChildren = new TreeSet<>(childAdded.keySet());
+        changedChildren.addAll(childRemoved.keySet());
+        for (String name : changedChildren) {
+            Tree child = update(store, trees.get(name),
+                    childAdded.getOrDefault(name, new TreeMap<>()),
+                    childRemoved.getOrDefault(name, new TreeSet<>()));
+            if (child.isEmpty()) {
+                trees.remove(name);
+            } else {
+                trees.put(name, child.getTreeID());
+            }
+        }
+
+        Tree tree = new Tree(blobs, trees);
+        if (!tree.isEmpty()) {
+            store.writeTree(tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns every path whose blob differs between the trees FROM and TO, mapped to its blob ID
+     * in TO, or to null if TO does not have it. Subtrees with the same ID are skipped unread.
+     */
+    static Map<String, String> diff(ObjectStore store, String from, String to) {
+        return diff(store, Map.of(), from, to);
+    }
+
+    /**
+     * Returns the changes between FROM and TO as for {@link #diff(ObjectStore, String, String)},
+     * where either may be a tree of UNSTORED, e.g. one made by {@link #build(Map, Map)}.
+     */
+    static Map<String, String> diff(ObjectStore store, Map<String, Tree> unstored, String from, String to) {
+        Map<String, String> changes = new TreeMap<>();
+        Function<String, Tree> reader = id -> unstored.containsKey(id) ? unstored.get(id) : read(store, id);
+        diff(reader, from, to, "", changes);
+        return changes;
+    }
+
+    private static void diff(Function<String, Tree> reader, String from, String to, String prefix,
+                             Map<String, String> changes) {
+        if (from != null && from.equals(to)) {
+            return;
+        }
+        if (from == null) {
+            flatten(reader, to, prefix, changes);
+            return;
+        }
+        if (to == null) {
+            Map<String, String> gone = new TreeMap<>();
+            flatten(reader, from, prefix, gone);
+            for (String path : gone.keySet()) {
+                changes.put(path, null);
+            }
+            return;
+        }
+        Tree fromTree = reader.apply(from);
+        Tree toTree = reader.apply(to);
+
+        TreeSet<String> names = new TreeSet<>(fromTree.blobs.keySet());
+        names.addAll(toTree.blobs.keySet());
+        for (String name : names) {
+            String fromBlob = fromTree.blobs.get(name);
+            String toBlob = toTree.blobs.get(name);
+            if (fromBlob == null || !fromBlob.equals(toBlob)) {
+                changes.put(prefix + name, toBlob);
+            }
+        }
+
+        TreeSet<String> dirs = new TreeSet<>(fromTree.trees.keySet());
+        dirs.addAll(toTree.trees.keySet());
+        for (String name : dirs) {
+            diff(reader, fromTree.trees.get(name), toTree.trees.get(name), prefix + name + SEPARATOR, changes);
+        }
+    }
+
+    /**
+     * Returns the bytes the tree is stored as, in the binary form of {@link Codec}.
+     */
+    byte[] encode() {
+        return Codec.encode(Codec.TREE, out -> {
+            for (Map<String, String> entries : List.of(blobs, trees)) {
+                out.writeInt(entries.size());
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    Codec.writeString(out, entry.getKey());
+                    Codec.writeID(out, entry.getValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the tree stored as BYTES, in the binary form or Java-serialized.
+     */
+    static Tree decode(ByteBuffer bytes) {
+        return Codec.decode(bytes, Codec.TREE, Tree.class, (in, version) -> {
+            List<Map<String, String>> maps = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                Map<String, String> entries = new TreeMap<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    entries.put(Codec.readString(in), Codec.readID(in));
+                }
+                maps.add(entries);
+            }
+            return new Tree(maps.get(0), maps.get(1));
+        });
+    }
+
+    /**
+     * Reads the tree with the given ID, which must exist.
+     */
+    private static Tree read(ObjectStore store, String treeID) {
+        if (treeID.equals(EMPTY.treeID)) {
+            return EMPTY;
+        }
+        Tree tree = store.readTree(treeID);
+        if (tree == null) {
+            throw Utils.error("Missing tree %s", treeID);
+        }
+        return tree;
+    }
+
+    /**
+     * Generates the ID from a canonical listing of the entries, one per line.
+     */
+    private String generateID() {
+        List<Object> listing = new ArrayList<>();
+        for (Map.Entry<String, String> entry : blobs.entrySet()) {
+            listing.add("blob " + entry.getKey() + "\0" + entry.getValue() + "\n");
+        }
+        for (Map.Entry<String, String> entry : trees.entrySet()) {
+            listing.add("tree " + entry.getKey() + "\0" + entry.getValue() + "\n");
+        }
+        return Utils.sha1(listing);
+    }
+}
@@ -1,22 +1,35 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 
 /**
@@ -29,6 +42,11 @@ import java.util.List;
  */
 class Utils {
 
+    /**
+     * Where {@link #stdout()} writes, see {@link #setStdout}.
+     */
+    private static OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+
     /**
      * The length of a complete SHA-1 UID as a hexadecimal numeral.
      */
@@ -153,6 +171,14 @@ class Utils {
         }
     }
 
+    /**
+     * The only classes deserialization may create: the objects gitlet wrote with Java
+     * serialization before it had its own encoding, and the values and collections they hold.
+     */
+    private static final ObjectInputFilter LEGACY_CLASSES = ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;gitlet.Commit;gitlet.Blob;gitlet.Tree;gitlet.Stage;gitlet.RemoteRepository;"
+            + "java.lang.*;java.util.*;!*");
+
     /**
      * Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      * Throws IllegalArgumentException in case of problems.
@@ -162,6 +188,7 @@ class Utils {
         try {
             ObjectInputStream in =
                     new ObjectInputStream(new FileInputStream(file));
+            in.setObjectInputFilter(LEGACY_CLASSES);
             T result = expectedClass.cast(in.readObject());
             in.close();
             return result;
@@ -253,8 +280,63 @@ class Utils {
         }
     }
 
+    /**
+     * Return an object of type T deserialized from the stream STR, casting
+     * it to EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems.
+     */
+    static <T extends Serializable> T deserialize(InputStream str,
+                                                  Class<T> expectedClass) {
+        try (ObjectInputStream in = new ObjectInputStream(str)) {
+            in.setObjectInputFilter(LEGACY_CLASSES);
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
+    /* CONCURRENCY */
+
+    /**
+     * Runs TASKS on at most JOBS threads and returns their results in
+     * the order of TASKS.  A RuntimeException thrown by a task, such as
+     * a GitletException, is rethrown as is.
+     */
+    static <T> List<T> runAll(List<Callable<T>> tasks, int jobs) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (jobs <= 1 || tasks.size() <= 1) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+            ForkJoinPool pool = new ForkJoinPool(Math.min(jobs, tasks.size()));
+            try {
+                for (Future<T> future : pool.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("Task failed: %s", excp.getCause().getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted.");
+        } catch (RuntimeException excp) {
+            throw excp;
+        } catch (Exception excp) {
+            throw error("Task failed: %s", excp.getMessage());
+        }
+        return results;
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /**
@@ -274,8 +356,32 @@ class Utils {
         System.out.println();
     }
 
+    /**
+     * Return a buffered writer on standard output. Unlike System.out, which flushes
+     * on every line and ignores errors, it throws an IOException once nobody reads
+     * the output any more, e.g. after a pipe into head is closed.
+     * Flush it when done, but do not close it.
+     */
+    static Writer stdout() {
+        System.out.flush();
+        return new BufferedWriter(new OutputStreamWriter(stdout), 1 << 16);
+    }
+
+    /**
+     * Sends what {@link #stdout()} writes to OUT instead, as a {@link Server} does for
+     * each client, and returns where it wrote before.
+     */
+    static OutputStream setStdout(OutputStream out) {
+        OutputStream previous = stdout;
+        stdout = out;
+        return previous;
+    }
+
+    /**
+     * Prints MESSAGE and ends the command by throwing an {@link Abort}.
+     */
     static void abort(String message) {
         System.out.println(message);
-        System.exit(0);
+        throw new Abort();
     }
 }
@@ -0,0 +1,193 @@
+#!/usr/bin/env python3
+"""Tests fetch and push against a running `gitlet daemon`.
+
+Usage: daemon-test.py [--progdir DIR]
+
+tester.py runs each command to completion, so it cannot keep a daemon running
+while other commands talk to it. This script starts `gitlet daemon --port 0
+--allow-push` on 127.0.0.1 in a scratch repository, and then, from a second
+repository that adds it as a gitlet:// remote, fetches, pulls and pushes
+through it. It also sends the daemon a request with a corrupt length prefix,
+which must be answered with an error rather than a dropped connection, and
+pushes of hand-made packs that must be refused without leaving anything in
+the served repository: one holding a Java-serialized commit, and one that
+lacks the commit it claims to push.
+
+DIR is the directory holding the compiled gitlet classes, by default the
+parent of this directory, as for tester.py.
+"""
+
+import argparse
+import hashlib
+import os
+import re
+import shutil
+import socket
+import struct
+import subprocess
+import sys
+import tempfile
+import zlib
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+
+PUSH = 2
+ERROR = 1
+DAEMON_MAGIC = 0x474c4450
+
+PACK_MAGIC = 0x5041434b
+PACK_COMMIT = 1
+PACK_BLOB = 2
+
+
+class Failure(Exception):
+    pass
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Test gitlet daemon over loopback.")
+    parser.add_argument("--progdir", default=os.path.dirname(HERE))
+    opts = parser.parse_args()
+    progdir = os.path.abspath(opts.progdir)
+
+    scratch = tempfile.mkdtemp(prefix="gitlet-daemon-")
+    daemon = None
+    try:
+        served = os.path.join(scratch, "served")
+        client = os.path.join(scratch, "client")
+        os.mkdir(served)
+        os.mkdir(client)
+
+        def gitlet(repo, *args):
+            result = subprocess.run(["java", "-ea", "-cp", progdir, "gitlet.Main"] + list(args),
+                                    cwd=repo, stdout=subprocess.PIPE, stderr=subprocess.STDOUT,
+                                    universal_newlines=True, timeout=30)
+            return result.stdout
+
+        gitlet(served, "init")
+        shutil.copy(os.path.join(HERE, "src", "wug.txt"), served)
+        gitlet(served, "add", "wug.txt")
+        gitlet(served, "commit", "served wug")
+
+        daemon = subprocess.Popen(
+            ["java", "-ea", "-cp", progdir, "gitlet.Main", "daemon", "--listen", "127.0.0.1",
+             "--port", "0", "--allow-push"],
+            cwd=served, stdout=subprocess.PIPE, stderr=subprocess.DEVNULL,
+            universal_newlines=True)
+        banner = daemon.stdout.readline().strip()
+        match = re.fullmatch(r"Listening on (gitlet://127\.0\.0\.1:(\d+)/)", banner)
+        check(match is not None, "daemon banner", banner)
+        url, port = match.group(1), int(match.group(2))
+
+        gitlet(client, "init")
+        expect(gitlet(client, "add-remote", "origin", url), "", "add-remote")
+        expect(gitlet(client, "fetch", "origin", "master"), "", "fetch")
+        fetched = gitlet(client, "find", "served wug")
+        check(re.fullmatch(r"[0-9a-f]{40}\n", fetched), "find of the fetched commit", fetched)
+
+        expect(gitlet(client, "pull", "origin", "master"),
+               "Current branch fast-forwarded.\n", "pull")
+        expect(read(client, "wug.txt"), read(HERE, "src", "wug.txt"), "pulled wug.txt")
+
+        shutil.copy(os.path.join(HERE, "src", "notwug.txt"), client)
+        gitlet(client, "add", "notwug.txt")
+        gitlet(client, "commit", "client notwug")
+        expect(gitlet(client, "push", "origin", "master"), "", "push")
+        check("client notwug" in gitlet(served, "log", "-n", "1"),
+              "log of the pushed branch", gitlet(served, "log", "-n", "1"))
+        gitlet(served, "reset", head(gitlet(served, "log", "-n", "1")))
+        expect(read(served, "notwug.txt"), read(HERE, "src", "notwug.txt"), "pushed notwug.txt")
+
+        with socket.create_connection(("127.0.0.1", port), timeout=30) as conn:
+            stream = conn.makefile("rwb")
+            skip_advertisement(stream)
+            stream.write(bytes([PUSH]) + struct.pack(">i", -1))
+            stream.flush()
+            status = stream.read(1)
+            check(status == bytes([ERROR]), "status of a corrupt request", status)
+            message = read_string(stream)
+            check("Corrupt string length" in message, "error of a corrupt request", message)
+
+        expect(gitlet(client, "fetch", "origin", "master"), "", "fetch after a corrupt request")
+        check(daemon.poll() is None, "daemon still running", daemon.returncode)
+
+        objects = os.path.join(served, ".gitlet", "objects")
+        packs = sorted(os.listdir(os.path.join(objects, "pack")))
+        serialized = b"\xac\xed\x00\x05" + b"\x00" * 16
+        message = push_pack(port, "evil", hashlib.sha1(serialized).digest(),
+                            pack_of([(PACK_COMMIT, serialized)]))
+        check("Java-serialized" in message, "error of a pushed serialized commit", message)
+        blob = b"GBLZ" + zlib.compress(b"not a commit\n")
+        message = push_pack(port, "evil", hashlib.sha1(b"nowhere").digest(),
+                            pack_of([(PACK_BLOB, blob)]))
+        check("Missing commit" in message, "error of a push without its head", message)
+        expect(sorted(os.listdir(os.path.join(objects, "pack"))), packs, "packs after refused pushes")
+        check(not [name for name in os.listdir(objects) if name.startswith("tmp-")],
+              "temporary files after refused pushes", os.listdir(objects))
+        check("evil" not in gitlet(served, "status"), "branches after refused pushes",
+              gitlet(served, "status"))
+        expect(gitlet(client, "fetch", "origin", "master"), "", "fetch after refused pushes")
+    except Failure as excp:
+        print("FAILED:", excp)
+        sys.exit(1)
+    finally:
+        if daemon is not None:
+            daemon.terminate()
+            daemon.wait()
+        shutil.rmtree(scratch)
+    print("Daemon test passed.")
+
+
+def pack_of(records):
+    """Returns a pack of RECORDS, (type, payload) pairs, as a daemon receives it."""
+    body = b"".join(struct.pack(">bi", kind, len(payload)) + payload for kind, payload in records)
+    return struct.pack(">iii", PACK_MAGIC, 1, len(records)) + body
+
+
+def push_pack(port, branch, head_id, pack):
+    """Pushes PACK to the new BRANCH at HEAD_ID, a raw ID, and returns the error it gets."""
+    with socket.create_connection(("127.0.0.1", port), timeout=30) as conn:
+        stream = conn.makefile("rwb")
+        skip_advertisement(stream)
+        encoded = branch.encode("utf-8")
+        stream.write(bytes([PUSH]) + struct.pack(">i", len(encoded)) + encoded
+                     + b"\x00" + head_id + b"\x01" + struct.pack(">q", len(pack)) + pack)
+        stream.flush()
+        status = stream.read(1)
+        check(status == bytes([ERROR]), "status of a refused push", status)
+        return read_string(stream)
+
+
+def skip_advertisement(stream):
+    magic, version, count = struct.unpack(">iii", stream.read(12))
+    check(magic == DAEMON_MAGIC, "advertisement magic", hex(magic))
+    for _ in range(count):
+        read_string(stream)
+        stream.read(20)
+
+
+def read_string(stream):
+    (length,) = struct.unpack(">i", stream.read(4))
+    return stream.read(length).decode("utf-8")
+
+
+def head(log):
+    return re.search(r"^commit ([0-9a-f]{40})$", log, re.M).group(1)
+
+
+def read(*path):
+    with open(os.path.join(*path)) as f:
+        return f.read()
+
+
+def expect(actual, expected, what):
+    check(actual == expected, what, actual)
+
+
+def check(ok, what, actual):
+    if not ok:
+        raise Failure("%s: got %r" % (what, actual))
+
+
+if __name__ == "__main__":
+    main()
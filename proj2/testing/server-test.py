@@ -0,0 +1,142 @@
+#!/usr/bin/env python3
+"""Tests fetch and push run by a `gitlet server` against a local remote.
+
+Usage: server-test.py [--progdir DIR]
+
+tester.py runs each command to completion, so it cannot keep a server running
+while clients send it commands. This script starts `gitlet server` in a
+scratch repository and runs its commands through `gitlet.Client`, against a
+second repository added as a local remote. Between those commands, the remote
+is changed by processes of its own: it gets new commits on two branches and
+is packed by gc. Each fetch and push through the server must see the remote
+as it is then, and leave it whole for the remote's own commands. As in
+remote-negotiation.in, a fetch followed by reset stands in for pull, which
+switches branches when it fast-forwards.
+
+DIR is the directory holding the compiled gitlet classes, by default the
+parent of this directory, as for tester.py.
+"""
+
+import argparse
+import os
+import re
+import shutil
+import subprocess
+import sys
+import tempfile
+
+HERE = os.path.dirname(os.path.abspath(__file__))
+
+
+class Failure(Exception):
+    pass
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Test gitlet server with a local remote.")
+    parser.add_argument("--progdir", default=os.path.dirname(HERE))
+    opts = parser.parse_args()
+    progdir = os.path.abspath(opts.progdir)
+
+    scratch = tempfile.mkdtemp(prefix="gitlet-server-")
+    server = None
+    try:
+        local = os.path.join(scratch, "local")
+        remote = os.path.join(scratch, "remote")
+        os.mkdir(local)
+        os.mkdir(remote)
+
+        def run(main_class, repo, *args):
+            result = subprocess.run(["java", "-ea", "-cp", progdir, main_class] + list(args),
+                                    cwd=repo, stdout=subprocess.PIPE, stderr=subprocess.STDOUT,
+                                    universal_newlines=True, timeout=30)
+            return result.stdout
+
+        def served(*args):
+            return run("gitlet.Client", local, *args)
+
+        def direct(*args):
+            return run("gitlet.Main", remote, *args)
+
+        def commit(run_in, repo, name, source, message):
+            shutil.copy(os.path.join(HERE, "src", source), os.path.join(repo, name))
+            expect(run_in("add", name), "", "add " + name)
+            expect(run_in("commit", message), "", "commit " + message)
+
+        direct("init")
+        commit(direct, remote, "wug.txt", "wug.txt", "remote 1")
+
+        run("gitlet.Main", local, "init")
+        server = subprocess.Popen(["java", "-ea", "-cp", progdir, "gitlet.Main", "server"],
+                                  cwd=local, stdout=subprocess.PIPE, stderr=subprocess.DEVNULL,
+                                  universal_newlines=True)
+        banner = server.stdout.readline().strip()
+        check(banner == "Listening on .gitlet/server.sock", "server banner", banner)
+
+        expect(served("add-remote", "R", "../remote/.gitlet"), "", "add-remote")
+        expect(served("fetch", "R", "master"), "", "first fetch")
+        expect(served("reset", found(served("find", "remote 1"))), "", "reset to the fetched commit")
+        commit(served, local, "notwug.txt", "notwug.txt", "local 1")
+        expect(served("push", "R", "master"), "", "first push")
+
+        # The remote moves on by itself: a commit on a new branch, one on master, then gc.
+        direct("reset", head(direct("log", "-n", "1")))
+        expect(direct("branch", "side"), "", "branch side")
+        expect(direct("checkout", "side"), "", "checkout side")
+        commit(direct, remote, "side.txt", "wug.txt", "remote side")
+        expect(direct("checkout", "master"), "", "checkout master")
+        commit(direct, remote, "remote.txt", "notwug.txt", "remote 2")
+        expect(direct("gc"), "", "remote gc")
+
+        expect(served("fetch", "R", "master"), "", "second fetch")
+        expect(served("reset", found(served("find", "remote 2"))), "", "reset after the second fetch")
+        expect(read(local, "remote.txt"), read(HERE, "src", "notwug.txt"), "fetched remote.txt")
+        commit(served, local, "local.txt", "wug.txt", "local 2")
+        expect(served("push", "R", "master"), "", "second push")
+
+        log = direct("log")
+        messages = re.findall(r"^(?:remote|local) \d$", log, re.M)
+        expect(messages, ["local 2", "remote 2", "local 1", "remote 1"], "log of the remote")
+        expect(direct("reset", head(log)), "", "remote reset")
+        expect(read(remote, "local.txt"), read(HERE, "src", "wug.txt"), "pushed local.txt")
+        side = direct("log", "--", "side.txt")
+        check("remote side" not in side, "log of side.txt on master", side)
+        expect(direct("checkout", "side"), "", "checkout side after the pushes")
+        check("remote side" in direct("log", "-n", "1"), "log of side", direct("log", "-n", "1"))
+        check(server.poll() is None, "server still running", server.returncode)
+    except Failure as excp:
+        print("FAILED:", excp)
+        sys.exit(1)
+    finally:
+        if server is not None:
+            server.terminate()
+            server.wait()
+        shutil.rmtree(scratch)
+    print("Server test passed.")
+
+
+def found(output):
+    check(re.fullmatch(r"[0-9a-f]{40}\n", output), "find of a fetched commit", output)
+    return output.strip()
+
+
+def head(log):
+    return re.search(r"^commit ([0-9a-f]{40})$", log, re.M).group(1)
+
+
+def read(*path):
+    with open(os.path.join(*path)) as f:
+        return f.read()
+
+
+def expect(actual, expected, what):
+    check(actual == expected, what, actual)
+
+
+def check(ok, what, actual):
+    if not ok:
+        raise Failure("%s: got %r" % (what, actual))
+
+
+if __name__ == "__main__":
+    main()